@@ -0,0 +1,172 @@
+package me.denley.notary;
+
+import android.os.ParcelFileDescriptor;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Set;
+
+/**
+ * Writes received files to a hidden partial file, which is synced to disk and renamed over the
+ * target file only once it is complete. Observers of the destination directory therefore never
+ * see a half-written file.
+ */
+final class AtomicFileWriter {
+
+    private static final String TAG = "Notary";
+
+    static final int BUFFER_SIZE = 256 * 1024;
+
+    private AtomicFileWriter() {}
+
+    /**
+     * Copies the whole contents of the given descriptor to the target file.
+     *
+     * @param expectedHash The content hash that the file must have, if known.
+     */
+    static void write(@NonNull final ParcelFileDescriptor source, @NonNull final File partialFile, @NonNull final File target,
+                      @Nullable final String expectedHash) throws IOException {
+        final long size = source.getStatSize();
+        final FileInputStream in = new ParcelFileDescriptor.AutoCloseInputStream(source);
+        FileOutputStream out = null;
+        boolean committed = false;
+
+        try {
+            out = new FileOutputStream(partialFile);
+
+            if(size >= 0) {
+                // Regular file, so the kernel can copy it for us
+                transfer(in.getChannel(), size, out.getChannel());
+            } else {
+                // Pipe or socket, which has to be copied through a buffer
+                copy(in.getChannel(), out.getChannel(), ByteBuffer.allocateDirect(BUFFER_SIZE));
+            }
+
+            verify(partialFile, expectedHash);
+            commit(out, partialFile, target);
+            committed = true;
+        } finally {
+            ChannelTransport.closeQuietly(in);
+            ChannelTransport.closeQuietly(out);
+            if(!committed) {
+                partialFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Inflates the whole contents of the given descriptor, which is a zlib stream, to the target file.
+     *
+     * @param expectedHash The content hash that the inflated file must have, if known.
+     */
+    static void writeDecompressed(@NonNull final ParcelFileDescriptor source, @NonNull final File partialFile, @NonNull final File target,
+                                  @Nullable final String expectedHash) throws IOException {
+        final InputStream in = TransferCompression.decompress(new ParcelFileDescriptor.AutoCloseInputStream(source));
+        FileOutputStream out = null;
+        boolean committed = false;
+
+        try {
+            out = new FileOutputStream(partialFile);
+            copy(Channels.newChannel(in), out.getChannel(), ByteBuffer.allocateDirect(BUFFER_SIZE));
+            verify(partialFile, expectedHash);
+            commit(out, partialFile, target);
+            committed = true;
+        } finally {
+            ChannelTransport.closeQuietly(in);
+            ChannelTransport.closeQuietly(out);
+            if(!committed) {
+                partialFile.delete();
+            }
+        }
+    }
+
+    /**
+     * Transfers exactly {@code size} bytes from the start of a regular file.
+     */
+    private static void transfer(@NonNull final FileChannel in, final long size, @NonNull final FileChannel out) throws IOException {
+        long position = 0;
+        while(position < size) {
+            final long transferred = in.transferTo(position, size - position, out);
+            if(transferred <= 0) {
+                // The file was truncated while we were reading it, or the platform can't transfer it directly
+                in.position(position);
+                position += copy(in, out, ByteBuffer.allocateDirect(BUFFER_SIZE));
+                break;
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Copies everything remaining in the input channel to the output channel.
+     *
+     * @return The number of bytes copied.
+     */
+    static long copy(@NonNull final ReadableByteChannel in, @NonNull final FileChannel out, @NonNull final ByteBuffer buffer) throws IOException {
+        long copied = 0;
+        buffer.clear();
+        while(in.read(buffer) != -1) {
+            buffer.flip();
+            while(buffer.hasRemaining()) {
+                copied += out.write(buffer);
+            }
+            buffer.clear();
+        }
+        return copied;
+    }
+
+    /**
+     * Checks a received file against the hash the source sent, before it is renamed into place.
+     */
+    private static void verify(@NonNull final File partialFile, @Nullable final String expectedHash) throws IOException {
+        if(expectedHash!=null && !expectedHash.equals(FileHasher.hash(partialFile))) {
+            throw new IOException("Received file doesn't match the source's hash");
+        }
+    }
+
+    /**
+     * Flushes the partial file to disk, closes it, and renames it over the target file.
+     */
+    static void commit(@NonNull final FileOutputStream out, @NonNull final File partialFile, @NonNull final File target) throws IOException {
+        out.flush();
+        out.getFD().sync();
+        out.close();
+
+        if(!partialFile.renameTo(target)) {
+            throw new IOException("Unable to rename " + partialFile + " to " + target);
+        }
+    }
+
+    /**
+     * Deletes partial files left behind by interrupted transfers.
+     *
+     * @param directory The directory to clean.
+     * @param keep The names of partial files that belong to transfers that are still in progress.
+     * @param modifiedBefore Only partial files last written before this time, in milliseconds since the epoch, are deleted.
+     */
+    static void deleteStalePartialFiles(@NonNull final File directory, @NonNull final Set<String> keep, final long modifiedBefore) {
+        final File[] contents = directory.listFiles();
+        if(contents==null) {
+            return;
+        }
+
+        for(File file:contents) {
+            final String name = file.getName();
+            if(FileTransaction.isPartialFileName(name) && !keep.contains(name) && file.lastModified() < modifiedBefore) {
+                Log.d(TAG, "Deleting stale partial file: " + file.getAbsolutePath());
+                file.delete();
+            }
+        }
+    }
+
+}
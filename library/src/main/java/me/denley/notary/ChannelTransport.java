@@ -0,0 +1,227 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams large files from the source node to the destination node over the ChannelApi.
+ *
+ * Instead of staging the whole file in the data layer as an Asset, the source marks the file as
+ * streamed, and the destination opens a channel back to the source and reads the bytes as they
+ * are read from disk.
+ *
+ * Opening the channel and its streams times out, and a channel that stops sending or receiving
+ * data is closed by a {@link ChannelWatchdog}, which counts as an interruption.
+ */
+final class ChannelTransport {
+
+    private static final String TAG = "Notary";
+
+    /** Files at least this large are streamed over a channel instead of being sent as an Asset. */
+    static final long STREAM_THRESHOLD_BYTES = 1024 * 1024;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private ChannelTransport() {}
+
+    static boolean shouldStream(final long length) {
+        return length >= STREAM_THRESHOLD_BYTES;
+    }
+
+    /**
+     * Opens a channel to the source node of the given transaction, and returns a stream of the
+     * given file's contents, starting at the given byte offset. Closing the returned stream
+     * also closes the channel.
+     *
+     * @throws IOException if the channel could not be opened.
+     */
+    @WorkerThread
+    @NonNull static InputStream openSourceStream(@NonNull final Context context, @NonNull final FileTransaction transaction,
+                                                 final int index, final long offset) throws IOException {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient==null) {
+            throw new IOException("Unable to connect to wearable API");
+        }
+
+        try {
+            final ChannelApi.OpenChannelResult openResult = Wearable.ChannelApi
+                    .openChannel(apiClient, transaction.sourceNode, transaction.getStreamChannelPath(index, offset))
+                    .await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            final Channel channel = openResult.getChannel();
+            if (!openResult.getStatus().isSuccess() || channel == null) {
+                throw new IOException("Unable to open channel to source node");
+            }
+
+            final Channel.GetInputStreamResult streamResult = channel.getInputStream(apiClient)
+                    .await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!streamResult.getStatus().isSuccess() || streamResult.getInputStream() == null) {
+                channel.close(apiClient);
+                throw new IOException("Unable to open channel input stream");
+            }
+
+            return new ChannelInputStream(apiClient, channel, streamResult.getInputStream());
+        } catch (IOException | RuntimeException e) {
+            SharedApiClient.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Handles a stream channel opened by a destination node, by writing the requested
+     * source file to it. Runs on a background thread, which keeps the listener service started.
+     */
+    static void onStreamChannelOpened(@NonNull final Context context, @NonNull final Channel channel) {
+        ServiceKeepAlive.acquire(context);
+        NotaryExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    streamSourceFile(context, channel);
+                } finally {
+                    ServiceKeepAlive.release(context);
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    private static void streamSourceFile(@NonNull final Context context, @NonNull final Channel channel) {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient==null) {
+            return;
+        }
+
+        try {
+            final FileTransaction transaction;
+            final int index;
+            final long offset;
+            try {
+                transaction = NotaryWearableListenerService.loadTransaction(apiClient, FileTransaction.getDataApiPathForStream(channel.getPath()));
+                index = FileTransaction.getSourceIndexForStream(channel.getPath());
+                offset = FileTransaction.getOffsetForStream(channel.getPath());
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Malformed stream request: " + channel.getPath());
+                channel.close(apiClient);
+                return;
+            }
+
+            if(transaction==null || !channel.getNodeId().equals(transaction.destinationNode)
+                    || index >= transaction.getSourceFileCount()) {
+                Log.w(TAG, "Rejecting stream request: " + channel.getPath());
+                channel.close(apiClient);
+                return;
+            }
+
+            final Channel.GetOutputStreamResult streamResult = channel.getOutputStream(apiClient)
+                    .await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if(!streamResult.getStatus().isSuccess() || streamResult.getOutputStream()==null) {
+                channel.close(apiClient);
+                return;
+            }
+            final ChannelWatchdog watchdog = new ChannelWatchdog(apiClient, channel);
+            final OutputStream out = watchdog.watch(streamResult.getOutputStream());
+
+            // A resumed stream starts a new zlib stream from the offset in the file itself
+            final OutputStream target = transaction.isCompressed(index) ? TransferCompression.compress(out) : out;
+            FileInputStream in = null;
+            try {
+                in = new FileInputStream(transaction.getSourceFile(context, index));
+                in.getChannel().position(offset);
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = in.read(buffer)) != -1) {
+                    target.write(buffer, 0, count);
+                }
+                target.flush();
+            } catch (IOException e) {
+                Log.e(TAG, "Error streaming file", e);
+            } finally {
+                watchdog.stop();
+                closeQuietly(in);
+                closeQuietly(target);
+                channel.close(apiClient);
+            }
+        } finally {
+            SharedApiClient.release();
+        }
+    }
+
+    static void closeQuietly(@Nullable final java.io.Closeable closeable) {
+        if(closeable!=null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+
+    private static final class ChannelInputStream extends FilterInputStream {
+
+        @NonNull private final GoogleApiClient apiClient;
+        @NonNull private final Channel channel;
+        @NonNull private final ChannelWatchdog watchdog;
+        private boolean closed = false;
+
+        ChannelInputStream(@NonNull final GoogleApiClient apiClient, @NonNull final Channel channel, @NonNull final InputStream in) {
+            this(apiClient, channel, new ChannelWatchdog(apiClient, channel), in);
+        }
+
+        private ChannelInputStream(@NonNull final GoogleApiClient apiClient, @NonNull final Channel channel,
+                                   @NonNull final ChannelWatchdog watchdog, @NonNull final InputStream in) {
+            super(watchdog.watch(in));
+            this.apiClient = apiClient;
+            this.channel = channel;
+            this.watchdog = watchdog;
+        }
+
+        @Override public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                throw checkExpired(e);
+            }
+        }
+
+        @Override public int read(@NonNull final byte[] buffer, final int offset, final int count) throws IOException {
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                throw checkExpired(e);
+            }
+        }
+
+        @NonNull private IOException checkExpired(@NonNull final IOException e) {
+            return watchdog.hasExpired() ? new IOException("Timed out waiting for the source", e) : e;
+        }
+
+        @Override public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+
+            try {
+                watchdog.stop();
+                super.close();
+            } finally {
+                channel.close(apiClient);
+                SharedApiClient.release();
+            }
+        }
+    }
+
+}
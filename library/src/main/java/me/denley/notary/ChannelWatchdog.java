@@ -0,0 +1,106 @@
+package me.denley.notary;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Closes a channel once no data has been read from or written to it for {@link #IDLE_TIMEOUT_MILLIS},
+ * so that a peer that has stopped responding can't block a thread forever.
+ */
+final class ChannelWatchdog implements Runnable {
+
+    private static final String TAG = "Notary";
+
+    /** How long to wait for a channel and its streams to open. */
+    static final long OPEN_TIMEOUT_SECONDS = 30;
+
+    /** How long a channel can go without sending or receiving data before it is closed. */
+    static final long IDLE_TIMEOUT_MILLIS = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    @NonNull private final GoogleApiClient apiClient;
+    @NonNull private final Channel channel;
+    private volatile long lastActive;
+    private volatile boolean stopped = false;
+    private volatile boolean expired = false;
+
+    ChannelWatchdog(@NonNull final GoogleApiClient apiClient, @NonNull final Channel channel) {
+        this.apiClient = apiClient;
+        this.channel = channel;
+        lastActive = SystemClock.elapsedRealtime();
+        HANDLER.postDelayed(this, IDLE_TIMEOUT_MILLIS);
+    }
+
+    @Override public void run() {
+        if(stopped) {
+            return;
+        }
+
+        final long idle = SystemClock.elapsedRealtime() - lastActive;
+        if(idle >= IDLE_TIMEOUT_MILLIS) {
+            Log.w(TAG, "Closing idle channel: " + channel.getPath());
+            expired = true;
+            channel.close(apiClient);
+        } else {
+            HANDLER.postDelayed(this, IDLE_TIMEOUT_MILLIS - idle);
+        }
+    }
+
+    boolean hasExpired() {
+        return expired;
+    }
+
+    void stop() {
+        stopped = true;
+        HANDLER.removeCallbacks(this);
+    }
+
+    private void touch() {
+        lastActive = SystemClock.elapsedRealtime();
+    }
+
+    @NonNull InputStream watch(@NonNull final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override public int read() throws IOException {
+                final int value = super.read();
+                touch();
+                return value;
+            }
+
+            @Override public int read(@NonNull final byte[] buffer, final int offset, final int count) throws IOException {
+                final int read = super.read(buffer, offset, count);
+                touch();
+                return read;
+            }
+        };
+    }
+
+    @NonNull OutputStream watch(@NonNull final OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override public void write(final int value) throws IOException {
+                out.write(value);
+                touch();
+            }
+
+            @Override public void write(@NonNull final byte[] buffer, final int offset, final int count) throws IOException {
+                out.write(buffer, offset, count);
+                touch();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,99 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Compares the contents of a remote stream with a local file.
+ *
+ * The sizes are compared first when the remote size is known. The local file is then memory
+ * mapped a region at a time, and compared against the remote stream in large blocks.
+ */
+final class ContentComparator {
+
+    static final long UNKNOWN_SIZE = -1;
+
+    private static final int BLOCK_SIZE = 64 * 1024;
+    private static final long MAP_REGION_SIZE = 8 * 1024 * 1024;
+
+    private ContentComparator() {}
+
+    /**
+     * @param remote The remote contents. This stream is not closed.
+     * @param remoteSize The size of the remote contents, or {@link #UNKNOWN_SIZE}.
+     * @param local The local file to compare against.
+     * @return Whether the remote stream has exactly the same contents as the local file.
+     */
+    static boolean contentEquals(@NonNull final InputStream remote, final long remoteSize, @NonNull final File local) throws IOException {
+        final long localSize = local.length();
+        if(remoteSize!=UNKNOWN_SIZE && remoteSize!=localSize) {
+            return false;
+        }
+
+        final FileInputStream localIn = new FileInputStream(local);
+        try {
+            final FileChannel channel = localIn.getChannel();
+            final byte[] remoteBlock = new byte[BLOCK_SIZE];
+            final byte[] localBlock = new byte[BLOCK_SIZE];
+
+            long position = 0;
+            while(position < localSize) {
+                final long regionSize = Math.min(MAP_REGION_SIZE, localSize - position);
+                final MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+
+                while(region.hasRemaining()) {
+                    final int wanted = Math.min(BLOCK_SIZE, region.remaining());
+                    if(readFully(remote, remoteBlock, wanted) < wanted) {
+                        // Remote is shorter than the local file
+                        return false;
+                    }
+
+                    region.get(localBlock, 0, wanted);
+                    if(!rangeEquals(localBlock, remoteBlock, wanted)) {
+                        return false;
+                    }
+                }
+
+                position += regionSize;
+            }
+
+            // Remote must not be longer than the local file
+            return remote.read()==-1;
+        } finally {
+            localIn.close();
+        }
+    }
+
+    /**
+     * Reads until the requested number of bytes have been read, or the end of the stream is reached.
+     *
+     * @return The number of bytes read.
+     */
+    private static int readFully(@NonNull final InputStream in, @NonNull final byte[] buffer, final int length) throws IOException {
+        int total = 0;
+        while(total < length) {
+            final int count = in.read(buffer, total, length - total);
+            if(count==-1) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+
+    private static boolean rangeEquals(@NonNull final byte[] a, @NonNull final byte[] b, final int length) {
+        for (int i = 0; i < length; i++) {
+            if(a[i]!=b[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,782 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Channel;
+import com.google.android.gms.wearable.ChannelApi;
+import com.google.android.gms.wearable.Wearable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Updates a file that already exists at the destination, by sending only the parts of the source
+ * file that differ from it.
+ *
+ * The destination opens a channel to the source, which replies with whether it accepts the request.
+ * The destination then sends the signature of each block of its copy: an Adler-32 checksum, and
+ * part of a SHA-1 hash. The source looks for those blocks at every
+ * offset of its file using a rolling checksum, and replies with instructions to either copy a run
+ * of blocks from the destination's copy, or insert literal bytes. The destination rebuilds the
+ * file into a partial file, checks it against the source's size and hash, and renames it over the
+ * old copy.
+ *
+ * A source that rejects the request, or can't finish its instructions and ends them with an abort
+ * instead, fails the update rather than leaving it to be retried. A channel that stops sending or
+ * receiving data is closed after a timeout, which counts as an interruption. So that a large file
+ * that is mostly unchanged doesn't look idle, each side flushes what it has written after every
+ * megabyte of the file it reads. The source only compresses its instructions where a compressed
+ * stream can be flushed, and says whether it has in its reply.
+ */
+final class DeltaTransport {
+
+    private static final String TAG = "Notary";
+
+    private static final int VERSION = 1;
+
+    private static final int MIN_BLOCK_SIZE = 2 * 1024;
+    private static final int MAX_BLOCK_SIZE = 64 * 1024;
+
+    /** A sanity limit on the number of signatures, so that a malformed request can't exhaust memory. */
+    private static final int MAX_BLOCK_COUNT = 4 * 1024 * 1024;
+
+    private static final int SCAN_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Signatures and instructions are flushed after about this much of a file has been read, so that
+     * the peer hears from a node that is still reading a large file before its channel times out.
+     */
+    static final long FLUSH_INTERVAL_BYTES = 1024 * 1024;
+
+    private static final int REPLY_ACCEPTED = 1;
+    private static final int REPLY_REJECTED = 2;
+    /** Accepted, with the instructions compressed. */
+    private static final int REPLY_ACCEPTED_COMPRESSED = 3;
+
+    private static final int OP_END = 0;
+    private static final int OP_COPY = 1;
+    private static final int OP_LITERAL = 2;
+    private static final int OP_ABORT = 3;
+
+    private DeltaTransport() {}
+
+    /**
+     * @return The block size for a file of the given size. About the square root of the size, which
+     *         balances the size of the signatures against the amount of data resent for each change.
+     */
+    static int chooseBlockSize(final long length) {
+        final long root = ((long) Math.sqrt(length) + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, root));
+    }
+
+    /**
+     * Updates the destination's copy of a file to match the source.
+     *
+     * @param basis The destination's existing copy, which is replaced if the update succeeds.
+     * @param basisLength The size of the existing copy, already read from disk.
+     * @return Whether the rebuilt file matched the source's size and hash, and replaced the existing copy.
+     *         False if it didn't, or if the source rejected the request or couldn't finish it.
+     * @throws IOException if the update was interrupted, or timed out.
+     */
+    @WorkerThread
+    static boolean update(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index,
+                          @NonNull final File basis, final long basisLength, @NonNull final File partialFile) throws IOException {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient==null) {
+            throw new IOException("Unable to connect to wearable API");
+        }
+
+        Channel channel = null;
+        ChannelWatchdog watchdog = null;
+        InputStream in = null;
+        OutputStream out = null;
+        RandomAccessFile basisFile = null;
+        FileOutputStream target = null;
+        boolean committed = false;
+        try {
+            final ChannelApi.OpenChannelResult openResult = Wearable.ChannelApi
+                    .openChannel(apiClient, transaction.sourceNode, transaction.getDeltaChannelPath(index))
+                    .await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            channel = openResult.getChannel();
+            if (!openResult.getStatus().isSuccess() || channel == null) {
+                throw new IOException("Unable to open channel to source node");
+            }
+
+            final Channel.GetOutputStreamResult outResult = channel.getOutputStream(apiClient).await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            final Channel.GetInputStreamResult inResult = channel.getInputStream(apiClient).await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!outResult.getStatus().isSuccess() || outResult.getOutputStream() == null
+                    || !inResult.getStatus().isSuccess() || inResult.getInputStream() == null) {
+                throw new IOException("Unable to open channel streams");
+            }
+            watchdog = new ChannelWatchdog(apiClient, channel);
+            out = watchdog.watch(outResult.getOutputStream());
+            in = watchdog.watch(inResult.getInputStream());
+
+            in = new BufferedInputStream(in, SCAN_BUFFER_SIZE);
+            final int reply = in.read();
+            if(reply==-1) {
+                throw new EOFException("Channel closed before the source replied");
+            } else if(reply!=REPLY_ACCEPTED && reply!=REPLY_ACCEPTED_COMPRESSED) {
+                Log.w(TAG, "Source rejected update of " + basis);
+                return false;
+            }
+
+            final int blockSize = chooseBlockSize(basisLength);
+            final DataOutputStream signatureOut = new DataOutputStream(new BufferedOutputStream(out, SCAN_BUFFER_SIZE));
+            writeSignatures(basis, basisLength, blockSize, signatureOut);
+            signatureOut.flush();
+
+            if(reply==REPLY_ACCEPTED_COMPRESSED) {
+                in = TransferCompression.decompress(in);
+            }
+
+            basisFile = new RandomAccessFile(basis, "r");
+            target = new FileOutputStream(partialFile);
+            final MessageDigest digest = FileHasher.createDigest();
+            final long written = apply(new DataInputStream(in), basisFile.getChannel(), basisLength, blockSize, target.getChannel(), digest);
+            basisFile.close();
+
+            if(written==-1) {
+                Log.w(TAG, "Source was unable to finish update of " + basis);
+                return false;
+            } else if(written!=transaction.getSourceSize(index) || !FileHasher.toHex(digest.digest()).equals(transaction.getSourceHash(index))) {
+                Log.w(TAG, "Updated file doesn't match the source: " + basis);
+                return false;
+            }
+
+            AtomicFileWriter.commit(target, partialFile, basis);
+            committed = true;
+            return true;
+        } catch (IOException e) {
+            if(watchdog!=null && watchdog.hasExpired()) {
+                throw new IOException("Timed out waiting for the source", e);
+            }
+            throw e;
+        } finally {
+            if(watchdog!=null) {
+                watchdog.stop();
+            }
+            ChannelTransport.closeQuietly(basisFile);
+            ChannelTransport.closeQuietly(target);
+            ChannelTransport.closeQuietly(in);
+            ChannelTransport.closeQuietly(out);
+            if(!committed) {
+                partialFile.delete();
+            }
+            if(channel!=null) {
+                channel.close(apiClient);
+            }
+            SharedApiClient.release();
+        }
+    }
+
+    /**
+     * Handles a delta channel opened by a destination node, by reading the signatures of its copy
+     * and replying with the differences from the source file. Runs on a background thread, which
+     * keeps the listener service started.
+     */
+    static void onDeltaChannelOpened(@NonNull final Context context, @NonNull final Channel channel) {
+        ServiceKeepAlive.acquire(context);
+        NotaryExecutor.execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    sendChanges(context, channel);
+                } finally {
+                    ServiceKeepAlive.release(context);
+                }
+            }
+        });
+    }
+
+    @WorkerThread
+    private static void sendChanges(@NonNull final Context context, @NonNull final Channel channel) {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient==null) {
+            return;
+        }
+
+        try {
+            final Channel.GetInputStreamResult inResult = channel.getInputStream(apiClient).await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            final Channel.GetOutputStreamResult outResult = channel.getOutputStream(apiClient).await(ChannelWatchdog.OPEN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (!inResult.getStatus().isSuccess() || inResult.getInputStream() == null
+                    || !outResult.getStatus().isSuccess() || outResult.getOutputStream() == null) {
+                channel.close(apiClient);
+                return;
+            }
+
+            final ChannelWatchdog watchdog = new ChannelWatchdog(apiClient, channel);
+            final InputStream in = watchdog.watch(inResult.getInputStream());
+            OutputStream out = watchdog.watch(outResult.getOutputStream());
+            ReadTracker source = null;
+            try {
+                final FileTransaction transaction = loadRequestedTransaction(apiClient, channel);
+                if(transaction==null) {
+                    out.write(REPLY_REJECTED);
+                    out.flush();
+                    return;
+                }
+
+                // Only compressed if the instructions can still be flushed part way through
+                final int index = FileTransaction.getSourceIndexForDelta(channel.getPath());
+                final boolean compressed = transaction.isCompressed(index) && TransferCompression.canCompressFlushable();
+                out.write(compressed ? REPLY_ACCEPTED_COMPRESSED : REPLY_ACCEPTED);
+                out.flush();
+                if(compressed) {
+                    out = TransferCompression.compressFlushable(out);
+                }
+                final DataOutputStream delta = new DataOutputStream(new BufferedOutputStream(out, SCAN_BUFFER_SIZE));
+
+                final Signatures signatures;
+                try {
+                    signatures = Signatures.read(new DataInputStream(new BufferedInputStream(in, SCAN_BUFFER_SIZE)));
+                    source = new ReadTracker(new FileInputStream(transaction.getSourceFile(context, index)));
+                } catch (MalformedSignaturesException | FileNotFoundException e) {
+                    abort(delta, e);
+                    return;
+                }
+
+                try {
+                    final long literalBytes = encode(source, signatures, delta);
+                    delta.flush();
+                    Log.d(TAG, "Sent " + literalBytes + " changed bytes of " + transaction.getSourceFileName(index));
+                } catch (IOException e) {
+                    if(!source.hasFailed()) {
+                        throw e;
+                    }
+                    abort(delta, e);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error sending file changes", e);
+            } finally {
+                watchdog.stop();
+                ChannelTransport.closeQuietly(source);
+                ChannelTransport.closeQuietly(in);
+                // Also finishes the compressed stream
+                ChannelTransport.closeQuietly(out);
+                channel.close(apiClient);
+            }
+        } finally {
+            SharedApiClient.release();
+        }
+    }
+
+    /**
+     * Tells the destination that the source can't send the rest of the changes, so that it
+     * fails the update instead of trying again.
+     */
+    private static void abort(@NonNull final DataOutputStream delta, @NonNull final IOException cause) throws IOException {
+        Log.e(TAG, "Unable to send file changes", cause);
+        delta.writeByte(OP_ABORT);
+        delta.flush();
+    }
+
+    /**
+     * @return The transaction that the delta channel was opened for, or null if the request isn't valid.
+     */
+    @WorkerThread
+    @Nullable private static FileTransaction loadRequestedTransaction(@NonNull final GoogleApiClient apiClient, @NonNull final Channel channel) {
+        final FileTransaction transaction;
+        final int index;
+        try {
+            transaction = NotaryWearableListenerService.loadTransaction(apiClient, FileTransaction.getDataApiPathForDelta(channel.getPath()));
+            index = FileTransaction.getSourceIndexForDelta(channel.getPath());
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Malformed delta request: " + channel.getPath());
+            return null;
+        }
+
+        if(transaction==null || !channel.getNodeId().equals(transaction.destinationNode)
+                || !transaction.shouldUpdateExisting() || index >= transaction.getSourceFileCount()) {
+            Log.w(TAG, "Rejecting delta request: " + channel.getPath());
+            return null;
+        }
+        return transaction;
+    }
+
+    /**
+     * Writes the signature of each block of the given file.
+     */
+    static void writeSignatures(@NonNull final File file, final long length, final int blockSize,
+                                @NonNull final DataOutputStream out) throws IOException {
+        final int count = (int) ((length + blockSize - 1) / blockSize);
+        if(count > MAX_BLOCK_COUNT) {
+            throw new IOException("File is too large to update: " + file);
+        }
+
+        out.writeInt(VERSION);
+        out.writeLong(length);
+        out.writeInt(blockSize);
+        out.writeInt(count);
+
+        final RollingChecksum checksum = new RollingChecksum();
+        final MessageDigest digest = FileHasher.createDigest();
+        final byte[] block = new byte[blockSize];
+        final DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            long remaining = length;
+            long unflushed = 0;
+            while(remaining > 0) {
+                final int blockLength = (int) Math.min(blockSize, remaining);
+                in.readFully(block, 0, blockLength);
+                checksum.reset(block, 0, blockLength);
+                out.writeInt(checksum.value());
+                out.writeLong(strongHash(digest, block, 0, blockLength));
+                remaining -= blockLength;
+
+                unflushed += blockLength;
+                if(unflushed >= FLUSH_INTERVAL_BYTES) {
+                    out.flush();
+                    unflushed = 0;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the instructions to rebuild the source file from the destination's blocks.
+     *
+     * @return The number of bytes that had to be sent literally.
+     */
+    static long encode(@NonNull final InputStream in, @NonNull final Signatures signatures,
+                       @NonNull final DataOutputStream out) throws IOException {
+        final int blockSize = signatures.blockSize;
+        final int lastLength = signatures.getBlockLength(signatures.count - 1);
+        final byte[] buffer = new byte[Math.max(SCAN_BUFFER_SIZE, blockSize * 2 + 1)];
+        final RollingChecksum checksum = new RollingChecksum();
+        final MessageDigest digest = FileHasher.createDigest();
+        final DeltaWriter writer = new DeltaWriter(out);
+
+        int valid = 0;
+        int pos = 0;
+        int literalStart = 0;
+        long unflushed = 0;
+        boolean eof = false;
+        boolean summed = false;
+        int expectedBlock = -1;
+
+        while(true) {
+            // Keep at least one byte after the window, so that it can roll
+            if(!eof && valid - pos <= blockSize) {
+                writer.literal(buffer, literalStart, pos - literalStart);
+                unflushed += pos;
+                if(unflushed >= FLUSH_INTERVAL_BYTES) {
+                    writer.flush();
+                    unflushed = 0;
+                }
+                System.arraycopy(buffer, pos, buffer, 0, valid - pos);
+                valid -= pos;
+                pos = 0;
+                literalStart = 0;
+                while(valid < buffer.length) {
+                    final int count = in.read(buffer, valid, buffer.length - valid);
+                    if(count==-1) {
+                        eof = true;
+                        break;
+                    }
+                    valid += count;
+                }
+                continue;
+            }
+
+            final int windowLength = Math.min(blockSize, valid - pos);
+            if(windowLength==0) {
+                break;
+            } else if(windowLength < blockSize) {
+                // The tail of the file can only match the destination's last block
+                if(windowLength < lastLength || lastLength==blockSize) {
+                    break;
+                } else if(windowLength > lastLength) {
+                    pos = valid - lastLength;
+                    summed = false;
+                    continue;
+                }
+            }
+
+            if(!summed) {
+                checksum.reset(buffer, pos, windowLength);
+                summed = true;
+            }
+
+            final int match = signatures.find(checksum.value(), buffer, pos, windowLength, expectedBlock, digest);
+            if(match!=-1) {
+                writer.literal(buffer, literalStart, pos - literalStart);
+                writer.copy(match);
+                pos += windowLength;
+                literalStart = pos;
+                summed = false;
+                expectedBlock = match + 1;
+            } else if(pos + blockSize < valid) {
+                checksum.roll(buffer[pos], buffer[pos + blockSize]);
+                pos++;
+            } else {
+                pos++;
+                summed = false;
+            }
+        }
+
+        writer.literal(buffer, literalStart, valid - literalStart);
+        writer.end();
+        return writer.literalBytes;
+    }
+
+    /**
+     * Rebuilds the source file from the given instructions.
+     *
+     * @return The number of bytes written, or -1 if the source aborted.
+     */
+    static long apply(@NonNull final DataInputStream in, @NonNull final FileChannel basis, final long basisLength, final int blockSize,
+                      @NonNull final FileChannel target, @NonNull final MessageDigest digest) throws IOException {
+        final long basisBlockCount = (basisLength + blockSize - 1) / blockSize;
+        final ByteBuffer buffer = ByteBuffer.allocate(AtomicFileWriter.BUFFER_SIZE);
+        long written = 0;
+
+        while(true) {
+            final int op = in.readUnsignedByte();
+            if(op==OP_END) {
+                return written;
+            } else if(op==OP_ABORT) {
+                return -1;
+            } else if(op==OP_COPY) {
+                final int first = in.readInt();
+                final int count = in.readInt();
+                if(first < 0 || count <= 0 || (long) first + count > basisBlockCount) {
+                    throw new IOException("Copied blocks out of range: " + first + "+" + count);
+                }
+
+                final long start = (long) first * blockSize;
+                final long end = Math.min(basisLength, start + (long) count * blockSize);
+                long position = start;
+                while(position < end) {
+                    buffer.clear();
+                    buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                    final int read = basis.read(buffer, position);
+                    if(read <= 0) {
+                        throw new IOException("Existing file was truncated during update");
+                    }
+                    position += read;
+                    write(buffer, target, digest);
+                }
+                written += end - start;
+            } else if(op==OP_LITERAL) {
+                int remaining = in.readInt();
+                if(remaining < 0) {
+                    throw new IOException("Negative literal length");
+                }
+                written += remaining;
+
+                while(remaining > 0) {
+                    final int read = in.read(buffer.array(), 0, Math.min(buffer.capacity(), remaining));
+                    if(read==-1) {
+                        throw new EOFException();
+                    }
+                    buffer.clear();
+                    buffer.position(read);
+                    remaining -= read;
+                    write(buffer, target, digest);
+                }
+            } else {
+                throw new IOException("Unknown delta operation: " + op);
+            }
+        }
+    }
+
+    /**
+     * Writes the bytes up to the buffer's position to the target, and adds them to the digest.
+     */
+    private static void write(@NonNull final ByteBuffer buffer, @NonNull final FileChannel target,
+                              @NonNull final MessageDigest digest) throws IOException {
+        buffer.flip();
+        digest.update(buffer.array(), 0, buffer.limit());
+        while(buffer.hasRemaining()) {
+            target.write(buffer);
+        }
+    }
+
+    /**
+     * @return The first 8 bytes of the block's SHA-1 hash. Enough to tell blocks with the same
+     *         checksum apart, as the whole file's hash is checked once it is rebuilt.
+     */
+    private static long strongHash(@NonNull final MessageDigest digest, @NonNull final byte[] bytes, final int offset, final int length) {
+        digest.reset();
+        digest.update(bytes, offset, length);
+        final byte[] hash = digest.digest();
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (hash[i] & 0xFF);
+        }
+        return value;
+    }
+
+
+    /**
+     * The block signatures of the destination's copy, indexed by checksum.
+     */
+    static final class Signatures {
+        final long length;
+        final int blockSize;
+        final int count;
+
+        @NonNull private final int[] checksums;
+        @NonNull private final long[] hashes;
+
+        /** Block indices, chained by checksum bucket. */
+        @NonNull private final int[] buckets;
+        @NonNull private final int[] next;
+
+        private Signatures(final long length, final int blockSize, final int count) {
+            this.length = length;
+            this.blockSize = blockSize;
+            this.count = count;
+            checksums = new int[count];
+            hashes = new long[count];
+            next = new int[count];
+
+            int bucketCount = 16;
+            while(bucketCount < count * 2) {
+                bucketCount <<= 1;
+            }
+            buckets = new int[bucketCount];
+            Arrays.fill(buckets, -1);
+        }
+
+        @NonNull static Signatures read(@NonNull final DataInputStream in) throws IOException {
+            final int version = in.readInt();
+            if(version!=VERSION) {
+                throw new MalformedSignaturesException("Unsupported signature version: " + version);
+            }
+
+            final long length = in.readLong();
+            final int blockSize = in.readInt();
+            final int count = in.readInt();
+            if(length < 0 || blockSize < MIN_BLOCK_SIZE || blockSize > MAX_BLOCK_SIZE
+                    || count < 0 || count > MAX_BLOCK_COUNT || count!=(length + blockSize - 1) / blockSize) {
+                throw new MalformedSignaturesException("Malformed signatures");
+            }
+
+            final Signatures signatures = new Signatures(length, blockSize, count);
+            for (int i = 0; i < count; i++) {
+                signatures.checksums[i] = in.readInt();
+                signatures.hashes[i] = in.readLong();
+            }
+            // Indexed in reverse, so that each chain lists the earliest blocks first
+            for (int i = count - 1; i >= 0; i--) {
+                final int bucket = signatures.getBucket(signatures.checksums[i]);
+                signatures.next[i] = signatures.buckets[bucket];
+                signatures.buckets[bucket] = i;
+            }
+            return signatures;
+        }
+
+        int getBlockLength(final int index) {
+            if(index < 0) {
+                return 0;
+            }
+            return (int) Math.min(blockSize, length - (long) index * blockSize);
+        }
+
+        /**
+         * @param expected The block most likely to match, which is checked first.
+         * @return The index of a block with the same contents as the window, or -1 if there isn't one.
+         */
+        int find(final int checksum, @NonNull final byte[] bytes, final int offset, final int length,
+                 final int expected, @NonNull final MessageDigest digest) {
+            long hash = 0;
+            boolean hashed = false;
+
+            if(expected >= 0 && expected < count && checksums[expected]==checksum && getBlockLength(expected)==length) {
+                hash = strongHash(digest, bytes, offset, length);
+                hashed = true;
+                if(hashes[expected]==hash) {
+                    return expected;
+                }
+            }
+
+            for (int i = buckets[getBucket(checksum)]; i != -1; i = next[i]) {
+                if(checksums[i]==checksum && getBlockLength(i)==length) {
+                    if(!hashed) {
+                        hash = strongHash(digest, bytes, offset, length);
+                        hashed = true;
+                    }
+                    if(hashes[i]==hash) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+
+        private int getBucket(final int checksum) {
+            return (checksum ^ (checksum >>> 16)) & (buckets.length - 1);
+        }
+    }
+
+
+    /**
+     * An Adler-32 checksum of a window, which can be moved along by one byte at a time.
+     */
+    static final class RollingChecksum {
+        private static final int MODULUS = 65521;
+
+        private int a;
+        private int b;
+        private int length;
+
+        void reset(@NonNull final byte[] bytes, final int offset, final int length) {
+            a = 1;
+            b = 0;
+            for (int i = offset; i < offset + length; i++) {
+                a = (a + (bytes[i] & 0xFF)) % MODULUS;
+                b = (b + a) % MODULUS;
+            }
+            this.length = length;
+        }
+
+        /**
+         * Moves the window along by one byte.
+         */
+        void roll(final byte removed, final byte added) {
+            final int out = removed & 0xFF;
+            a = (a - out + (added & 0xFF)) % MODULUS;
+            if(a < 0) {
+                a += MODULUS;
+            }
+            b = (int) ((b - (long) length * out + a - 1) % MODULUS);
+            if(b < 0) {
+                b += MODULUS;
+            }
+        }
+
+        int value() {
+            return (b << 16) | a;
+        }
+    }
+
+
+    /**
+     * Writes instructions, combining copies of consecutive blocks into one.
+     */
+    private static final class DeltaWriter {
+        @NonNull private final DataOutputStream out;
+        private int runStart = -1;
+        private int runCount = 0;
+        long literalBytes = 0;
+
+        DeltaWriter(@NonNull final DataOutputStream out) {
+            this.out = out;
+        }
+
+        void copy(final int block) throws IOException {
+            if(runCount > 0 && block==runStart + runCount) {
+                runCount++;
+            } else {
+                flushRun();
+                runStart = block;
+                runCount = 1;
+            }
+        }
+
+        void literal(@NonNull final byte[] bytes, final int offset, final int length) throws IOException {
+            if(length==0) {
+                return;
+            }
+            flushRun();
+            out.writeByte(OP_LITERAL);
+            out.writeInt(length);
+            out.write(bytes, offset, length);
+            literalBytes += length;
+        }
+
+        void end() throws IOException {
+            flushRun();
+            out.writeByte(OP_END);
+        }
+
+        /**
+         * Writes the run of copied blocks so far, and sends everything written.
+         */
+        void flush() throws IOException {
+            flushRun();
+            out.flush();
+        }
+
+        private void flushRun() throws IOException {
+            if(runCount > 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(runStart);
+                out.writeInt(runCount);
+                runCount = 0;
+            }
+        }
+    }
+
+
+    /**
+     * Thrown when the destination's signatures can't be read, because they are malformed or
+     * were written by an incompatible version.
+     */
+    static final class MalformedSignaturesException extends IOException {
+        MalformedSignaturesException(@NonNull final String message) {
+            super(message);
+        }
+    }
+
+
+    /**
+     * Remembers whether reading the underlying stream failed, so that errors reading the source
+     * file can be told apart from errors writing to the channel.
+     */
+    private static final class ReadTracker extends FilterInputStream {
+        private boolean failed = false;
+
+        ReadTracker(@NonNull final InputStream in) {
+            super(in);
+        }
+
+        boolean hasFailed() {
+            return failed;
+        }
+
+        @Override public int read() throws IOException {
+            try {
+                return super.read();
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+
+        @Override public int read(@NonNull final byte[] buffer, final int offset, final int count) throws IOException {
+            try {
+                return super.read(buffer, offset, count);
+            } catch (IOException e) {
+                failed = true;
+                throw e;
+            }
+        }
+    }
+
+}
@@ -1,7 +1,6 @@
 package me.denley.notary;
 
 import android.content.Context;
-import android.os.FileObserver;
 import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
@@ -14,7 +13,12 @@ import com.google.android.gms.wearable.Node;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class DirectoryObserver implements FileListener {
 
@@ -26,11 +30,16 @@ public class DirectoryObserver implements FileListener {
 
     @NonNull private final FileListAdapter adapter;
     @NonNull private final List<File> files;
-    @NonNull private final List<File> autoSyncFiles = new ArrayList<>();
+    /** Files that may need to be synced, each mapped to itself so that it can be looked up by an equal file. */
+    @NonNull private final Map<File, File> autoSyncFiles = new LinkedHashMap<>();
+    /** Files to sync that already exist remotely with a different size, if remote copies are updated. */
+    @NonNull private final Set<File> autoUpdateFiles = new LinkedHashSet<>();
+    private final boolean updateRemoteCopies;
 
     @NonNull private final String observedPath;
     @NonNull private final String externalObservedPathEncoded;
-    @NonNull private final FileObserver fileSystemObserver;
+    @NonNull private final DirectoryWatcher directoryWatcher;
+    @NonNull private final FileEventBatcher fileEventBatcher;
 
     @NonNull private final Handler handler = new Handler(Looper.getMainLooper());
 
@@ -42,60 +51,112 @@ public class DirectoryObserver implements FileListener {
     private boolean hasSyncedState = false;
     @Nullable private final SyncCallback callback;
 
+    /** Batches of file events larger than this are applied as a single diffed update. */
+    private static final int BULK_EVENT_THRESHOLD = 16;
+
+    /** Incremented whenever the file list is changed on the main thread, so that out of date diffs can be detected. */
+    private int fileListVersion = 0;
+
+    private interface FileListTransform {
+        /**
+         * @param current A snapshot of the file list, which must not be modified.
+         * @return A new list with the updated contents, in any order.
+         */
+        @WorkerThread @NonNull List<File> apply(@NonNull List<File> current);
+    }
+
     public DirectoryObserver(@NonNull final Context context, @NonNull final FileListAdapter adapter,
                              @NonNull final String path, @Nullable final String externalPathEncoded,
                              @Nullable final SyncableFileFilter fileFilter, @Nullable final Comparator<File> sorter,
                              @Nullable final SyncCallback callback) {
+        this(context, adapter, path, externalPathEncoded, fileFilter, sorter, callback, 1);
+    }
+
+    /**
+     * Creates an observer that also lists and observes the contents of subdirectories.
+     *
+     * Files in subdirectories are included in the adapter's list, by their full path. Only files directly
+     * in the observed directory are synced with the remote device.
+     *
+     * @param maxWatchedDirectories The maximum number of directories to observe, including the observed directory
+     *                              itself. Subdirectories beyond this limit are listed, but their contents are not.
+     *                              A value of 1 observes only the given directory.
+     */
+    public DirectoryObserver(@NonNull final Context context, @NonNull final FileListAdapter adapter,
+                             @NonNull final String path, @Nullable final String externalPathEncoded,
+                             @Nullable final SyncableFileFilter fileFilter, @Nullable final Comparator<File> sorter,
+                             @Nullable final SyncCallback callback, final int maxWatchedDirectories) {
+        this(context, adapter, path, externalPathEncoded, fileFilter, sorter, callback, maxWatchedDirectories, false);
+    }
+
+    /**
+     * Creates an observer that can also update remote copies of auto-synced files.
+     *
+     * By default, an auto-synced file is only sent if it doesn't exist remotely. With remote copies
+     * updated, a remote copy whose size differs from the local file is overwritten with it, even if
+     * the remote copy is the newer one. This should only be used where this device's copy is the
+     * one that is kept, and not by both devices for the same pair of directories.
+     *
+     * @param updateRemoteCopies Whether to overwrite remote copies of auto-synced files that differ in size.
+     */
+    public DirectoryObserver(@NonNull final Context context, @NonNull final FileListAdapter adapter,
+                             @NonNull final String path, @Nullable final String externalPathEncoded,
+                             @Nullable final SyncableFileFilter fileFilter, @Nullable final Comparator<File> sorter,
+                             @Nullable final SyncCallback callback, final int maxWatchedDirectories,
+                             final boolean updateRemoteCopies) {
         this.context = context;
         this.adapter = adapter;
         this.fileFilter = fileFilter;
         this.sorter = sorter;
         this.callback = callback;
+        this.updateRemoteCopies = updateRemoteCopies;
         this.externalObservedPathEncoded = externalPathEncoded!=null?externalPathEncoded:FileTransaction.DEFAULT_DIRECTORY;
         files = adapter.getFiles();
         observedPath = path;
 
-        fileSystemObserver = new FileObserver(observedPath) {
-            @Override public void onEvent(final int event, final String path) {
-                if(path!=null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            onFileSystemEvent(event, path);
-                        }
-                    });
-                }
-            }
-        };
+        fileEventBatcher = new FileEventBatcher(observedPath, fileEventCallback);
+        directoryWatcher = new DirectoryWatcher(observedPath, maxWatchedDirectories, fileEventBatcher);
 
-        new Thread() {
+        NotaryExecutor.execute(new Runnable() {
             public void run() {
                 final Node localNode = NotaryWearableListenerService.getLocalNode(context);
                 localNodeId = localNode==null?"":localNode.getId();
                 loadInitialFileList();
-                fileSystemObserver.startWatching();
                 Notary.registerFileListener(DirectoryObserver.this, path, localNodeId);
             }
-        }.start();
+        });
     }
 
     public void stopObserving() {
-        fileSystemObserver.stopWatching();
+        directoryWatcher.stopWatching();
+        fileEventBatcher.cancel();
         Notary.unregisterFileListener(this);
     }
 
+    /**
+     * Sets how long file system events are collected for before the file list is updated.
+     * Events for the same file within this window are combined into a single update.
+     */
+    @SuppressWarnings("unused")
+    public void setFileEventWindow(final long millis) {
+        fileEventBatcher.setWindowMillis(millis);
+    }
+
     @SuppressWarnings("unused")
     public boolean hasSyncedWithRemoteDevice() {
         return hasSyncedState;
     }
 
     private void loadInitialFileList() {
-        files.clear();
+        final List<File> initialFiles = new IndexedFileList();
 
         final List<PendingFile> transactions = Notary.getTransactionsForDirectory(context, observedPath);
         for(PendingFile file:transactions) {
-            if (file.transaction.getStatus()==FileTransaction.STATUS_IN_PROGRESS) {
+            if (file.getTransaction().getStatus()==FileTransaction.STATUS_IN_PROGRESS) {
                 if(fileFilter==null || fileFilter.display(file)) {
-                    files.add(file);
+                    if (!initialFiles.contains(file)) {
+                        initialFiles.add(file);
+                    }
                 }
             }
         }
@@ -104,145 +165,332 @@ public class DirectoryObserver implements FileListener {
         if(!directory.isDirectory()) {
             throw new IllegalArgumentException("Path does not represent a directory");
         }
-        for(java.io.File localFile:directory.listFiles()) {
-            final File file = new File(localFile);
+        // Watched before being listed, so that no changes are missed in between
+        for(File file:directoryWatcher.startWatching()) {
+            if(FileTransaction.isPartialFileName(file.getName())) {
+                continue;
+            }
+
             if(fileFilter==null || fileFilter.display(file)) {
-                if (!files.contains(file)) {
-                    files.add(file);
+                if (!initialFiles.contains(file)) {
+                    initialFiles.add(file);
                 }
             }
-            if(fileFilter!=null && fileFilter.autoSync(file)) {
-                autoSyncFiles.add(file);
+            if(fileFilter!=null && fileFilter.autoSync(file) && file.getDirectoryPath().equals(directory.getAbsolutePath())) {
+                autoSyncFiles.put(file, file);
             }
         }
 
         for(PendingFile file:transactions) {
-            if (file.transaction.getStatus()==FileTransaction.STATUS_IN_PROGRESS) {
+            if (file.getTransaction().getStatus()==FileTransaction.STATUS_IN_PROGRESS) {
                 autoSyncFiles.remove(file);
             }
         }
 
-        displayUpdatedFileList();
-
-        Notary.requestFileList(context, externalObservedPathEncoded, new Notary.FileListCallback() {
-            @Override public void success(FileListContainer fileList) {
-                if(fileList.outcome==FileListContainer.SUCCESS) {
-                    for (String path : fileList.files) {
-                        final String fileName = new java.io.File(path).getName();
-                        final SyncedFile syncedFile = new SyncedFile(new java.io.File(observedPath, fileName));
-
-                        final int position = files.indexOf(syncedFile);
-                        if (position != -1) {
-                            files.remove(position);
-                            files.add(position, syncedFile);
+        updateFileList(new FileListTransform() {
+            @NonNull @Override public List<File> apply(@NonNull List<File> current) {
+                return new ArrayList<>(initialFiles);
+            }
+        }, null);
+
+        // Each page is shown as soon as it arrives
+        Notary.requestFileListPages(context, externalObservedPathEncoded, FileListRequest.DEFAULT_PAGE_SIZE, new Notary.FileListPageCallback() {
+            @Override public void onPage(final FileListContainer page) {
+                final boolean success = page.outcome==FileListContainer.SUCCESS;
+                if(success) {
+                    for (int i = 0; i < page.getFileCount(); i++) {
+                        final File searchKey = createSearchKey(new java.io.File(page.files[i]).getName());
+                        final File localFile = autoSyncFiles.get(searchKey);
+                        if(updateRemoteCopies && localFile!=null && !page.isDirectory[i] && page.lengths[i]!=localFile.length()) {
+                            // The local copy is the one that is synced, so a remote copy that differs is replaced.
+                            // Compared by size only, as the devices' clocks may not agree.
+                            autoUpdateFiles.add(localFile);
+                        } else {
+                            autoSyncFiles.remove(searchKey);
                         }
-
-                        autoSyncFiles.remove(syncedFile);
                     }
 
-                    doAutoSync();
+                    if(page.isLastPage()) {
+                        doAutoSync();
+                    }
                 }
 
-                hasSyncedState = true;
-                displayUpdatedFileList();
-                if(callback!=null) {
-                    handler.post(new Runnable() {
-                        @Override public void run() {
-                            callback.onSyncComplete();
+                updateFileList(new FileListTransform() {
+                    @NonNull @Override public List<File> apply(@NonNull List<File> current) {
+                        final List<File> merged = new IndexedFileList();
+                        merged.addAll(current);
+
+                        if(success) {
+                            for (String path : page.files) {
+                                final String fileName = new java.io.File(path).getName();
+
+                                final int position = merged.indexOf(createSearchKey(fileName));
+                                if (position != -1) {
+                                    final File existing = merged.get(position);
+                                    // Pending files have no metadata of their own
+                                    merged.set(position, existing instanceof PendingFile
+                                            ? new SyncedFile(new java.io.File(observedPath, fileName))
+                                            : new SyncedFile(existing));
+                                }
+                            }
                         }
-                    });
-                }
+                        return merged;
+                    }
+                }, !page.isLastPage() ? null : new Runnable() {
+                    @Override public void run() {
+                        onSyncComplete();
+                    }
+                });
             }
             @Override public void failure(ConnectionResult result) {
-                hasSyncedState = true;
-                displayUpdatedFileList();
-                if(callback!=null) {
-                    handler.post(new Runnable() {
-                        @Override public void run() {
-                            callback.onSyncComplete();
-                        }
-                    });
-                }
+                handler.post(new Runnable() {
+                    @Override public void run() {
+                        onSyncComplete();
+                    }
+                });
             }
         });
     }
 
-    private synchronized void displayUpdatedFileList() {
-        if(sorter!=null) {
-            Collections.sort(files, sorter);
+    private void onSyncComplete() {
+        hasSyncedState = true;
+        if(callback!=null) {
+            callback.onSyncComplete();
         }
-        handler.post(new Runnable(){
+    }
+
+    /**
+     * Replaces the contents of the file list with the result of the given transform.
+     *
+     * The transform is run on a snapshot of the list on a background thread, where the result is
+     * sorted and diffed against the snapshot. The diff is then applied on the main thread, so the
+     * adapter is only notified of the files that actually changed. If the list is changed on the
+     * main thread in the meantime, the whole update is started again.
+     *
+     * @param onApplied Run on the main thread once the update has been applied.
+     */
+    private void updateFileList(@NonNull final FileListTransform transform, @Nullable final Runnable onApplied) {
+        handler.post(new Runnable() {
             public void run() {
-                adapter.notifyDataSetChanged();
+                final List<File> snapshot = new ArrayList<>(files);
+                final int version = fileListVersion;
+
+                NotaryExecutor.execute(new Runnable() {
+                    public void run() {
+                        final List<File> updated = transform.apply(snapshot);
+                        if(sorter!=null) {
+                            Collections.sort(updated, sorter);
+                        }
+                        final FileListDiff diff = FileListDiff.calculate(snapshot, updated);
+
+                        handler.post(new Runnable() {
+                            public void run() {
+                                if(version!=fileListVersion) {
+                                    updateFileList(transform, onApplied);
+                                } else {
+                                    diff.applyTo(files, adapter);
+                                    fileListVersion++;
+                                    if(onApplied!=null) {
+                                        onApplied.run();
+                                    }
+                                }
+                            }
+                        });
+                    }
+                });
             }
         });
     }
 
+    /**
+     * Inserts a file at its sorted position.
+     */
+    private void insertFile(@NonNull final File file) {
+        final int position = getInsertPosition(file);
+        files.add(position, file);
+        fileListVersion++;
+        adapter.notifyItemInserted(position);
+    }
+
+    /**
+     * Replaces the file at the given position, moving it if it no longer belongs there.
+     *
+     * @param changed Whether the adapter should be told that the file has changed.
+     */
+    private void replaceFile(final int position, @NonNull final File file, final boolean changed) {
+        files.set(position, file);
+        fileListVersion++;
+
+        if(!isInSortedPosition(position)) {
+            files.remove(position);
+            final int newPosition = getInsertPosition(file);
+            files.add(newPosition, file);
+            adapter.notifyItemMoved(position, newPosition);
+            adapter.notifyItemChanged(newPosition);
+        } else if(changed) {
+            adapter.notifyItemChanged(position);
+        }
+    }
+
+    private void removeFile(final int position) {
+        files.remove(position);
+        fileListVersion++;
+        adapter.notifyItemRemoved(position);
+    }
+
+    private int getInsertPosition(@NonNull final File file) {
+        if(sorter==null) {
+            return files.size();
+        }
+        final int result = Collections.binarySearch(files, file, sorter);
+        return result>=0 ? result : -result - 1;
+    }
+
+    private boolean isInSortedPosition(final int position) {
+        if(sorter==null) {
+            return true;
+        }
+        final File file = files.get(position);
+        return (position==0 || sorter.compare(files.get(position - 1), file) <= 0)
+                && (position==files.size() - 1 || sorter.compare(file, files.get(position + 1)) <= 0);
+    }
+
     private void doAutoSync() {
-        new Thread() {
+        NotaryExecutor.execute(new Runnable() {
             public void run() {
                 final List<Node> remoteNodes = NotaryWearableListenerService.getRemoteNodes(context);
                 if(!remoteNodes.isEmpty()) {
                     final String remoteNodeId = remoteNodes.get(0).getId();
 
-                    for (File file : autoSyncFiles) {
-                        if (!file.isDirectory && file.getClass()==File.class) { // file is not syncing, nor synced
+                    for (File file : autoSyncFiles.values()) {
+                        if (!file.isDirectory() && file.getClass()==File.class) { // file is not syncing, nor synced
                             if(fileFilter==null || fileFilter.autoSync(file)) {
-                                Notary.requestFileTransfer(context, file.path, localNodeId, externalObservedPathEncoded, remoteNodeId, false);
+                                Notary.requestFileTransfer(context, file.getPath(), localNodeId, externalObservedPathEncoded, remoteNodeId,
+                                        false, autoUpdateFiles.contains(file));
                             }
                         }
                     }
                 }
             }
-        }.start();
+        });
     }
 
-    private synchronized void onFileSystemEvent(int event, String path) {
-        final File updatedFile = new File(observedPath, path);
-
-        switch(event) {
-            case FileObserver.MODIFY:
-            case FileObserver.ATTRIB:
-            case FileObserver.MOVED_TO:
-            case FileObserver.CREATE: {
-                final int position = files.indexOf(updatedFile);
-                if (position!=-1) {
-                    final File existing = files.get(position);
-
-                    if(existing instanceof SyncedFile) {
-                        files.remove(position);
-                        files.add(position, new SyncedFile(new java.io.File(observedPath, path)));
-                        adapter.notifyItemChanged(position);
-                    } else if(!(existing instanceof PendingFile)) {
-                        files.remove(position);
-                        files.add(position, updatedFile);
-                        adapter.notifyItemChanged(position);
+    private final FileEventBatcher.Callback fileEventCallback = new FileEventBatcher.Callback() {
+        @Override public void onFileEvents(@NonNull final Map<String, File> changes) {
+            // Removing a directory removes everything listed below it, which is done off the main thread
+            if(changes.size() > BULK_EVENT_THRESHOLD || (directoryWatcher.isRecursive() && changes.containsValue(null))) {
+                // Diffed off the main thread, rather than shifting the list once per file
+                updateFileList(new FileListTransform() {
+                    @NonNull @Override public List<File> apply(@NonNull List<File> current) {
+                        final List<File> updated = new IndexedFileList();
+                        updated.addAll(current);
+                        final Set<String> removedKeys = new HashSet<>();
+                        for(Map.Entry<String, File> change:changes.entrySet()) {
+                            applyFileChange(updated, change.getKey(), change.getValue(), removedKeys);
+                        }
+                        return directoryWatcher.isRecursive() ? removeDescendants(updated, removedKeys) : updated;
                     }
-                } else {
-                    files.add(updatedFile);
-                    adapter.notifyItemInserted(files.size() - 1);
+                }, null);
+            } else {
+                for(Map.Entry<String, File> change:changes.entrySet()) {
+                    onFileChanged(change.getKey(), change.getValue());
                 }
-                break;
             }
-            case FileObserver.DELETE:
-            case FileObserver.MOVED_FROM: {
-                final int position = files.indexOf(updatedFile);
-                if (position != -1) {
-                    files.remove(position);
-                    adapter.notifyItemRemoved(position);
-                }
-                break;
+        }
+
+        @Override public void onDirectoryRemoved() {
+            stopObserving();
+            files.clear();
+            fileListVersion++;
+            adapter.notifyDataSetChanged();
+        }
+    };
+
+    /**
+     * @param updatedFile The current state of the file, or null if it no longer exists.
+     */
+    private void onFileChanged(@NonNull final String fileName, @Nullable final File updatedFile) {
+        final int position = files.indexOf(createSearchKey(fileName));
+
+        if(updatedFile==null) {
+            if (position != -1) {
+                removeFile(position);
+            }
+        } else if (position!=-1) {
+            final File existing = files.get(position);
+
+            if(existing instanceof SyncedFile) {
+                replaceFile(position, new SyncedFile(updatedFile), true);
+            } else if(!(existing instanceof PendingFile)) {
+                replaceFile(position, updatedFile, true);
             }
-            case FileObserver.DELETE_SELF:
-            case FileObserver.MOVE_SELF: {
-                stopObserving();
-                files.clear();
-                adapter.notifyDataSetChanged();
-                break;
+        } else {
+            insertFile(updatedFile);
+        }
+    }
+
+    /**
+     * @return A file that is equal to the observed file with the given name, without reading it from disk.
+     */
+    @NonNull private File createSearchKey(@NonNull final String fileName) {
+        return new File(new java.io.File(observedPath, fileName).getAbsolutePath(), false, false, false);
+    }
+
+    /**
+     * The same as {@link #onFileChanged(String, File)}, for a list that isn't shown yet.
+     *
+     * @param removedKeys Collects the keys of removed files, whose descendants are removed afterwards.
+     */
+    private void applyFileChange(@NonNull final List<File> list, @NonNull final String fileName, @Nullable final File updatedFile,
+                                 @NonNull final Set<String> removedKeys) {
+        final File searchKey = createSearchKey(fileName);
+        final int position = list.indexOf(searchKey);
+
+        if(updatedFile==null) {
+            if (position != -1) {
+                list.remove(position);
+            }
+            removedKeys.add(searchKey.getKey());
+        } else if (position!=-1) {
+            final File existing = list.get(position);
+
+            if(existing instanceof SyncedFile) {
+                list.set(position, new SyncedFile(updatedFile));
+            } else if(!(existing instanceof PendingFile)) {
+                list.set(position, updatedFile);
             }
+        } else {
+            list.add(updatedFile);
         }
     }
 
+    /**
+     * Removes every file below one of the given files in a single pass, instead of shifting
+     * the list once per file.
+     */
+    @NonNull private static List<File> removeDescendants(@NonNull final List<File> list, @NonNull final Set<String> removedKeys) {
+        if(removedKeys.isEmpty()) {
+            return list;
+        }
+
+        final List<File> kept = new ArrayList<>(list.size());
+        for(File file:list) {
+            if(!hasAncestorIn(file.getKey(), removedKeys)) {
+                kept.add(file);
+            }
+        }
+        return kept;
+    }
+
+    private static boolean hasAncestorIn(@NonNull final String key, @NonNull final Set<String> keys) {
+        for (int i = key.lastIndexOf('/'); i > 0; i = key.lastIndexOf('/', i - 1)) {
+            if(keys.contains(key.substring(0, i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override public void onSourceFileStatusChanged(final FileTransaction transaction, final int indexUpdated) {
         handler.post(new Runnable() {
             public void run() {
@@ -264,11 +512,9 @@ public class DirectoryObserver implements FileListener {
             public void run() {
                 final File file = new File(observedPath, transaction.getSourceFileName(indexUpdated));
 
-                if(files.contains(file)) {
-                    final int position = files.indexOf(file);
-                    files.remove(position);
-                    files.add(position, file);
-                    adapter.notifyItemChanged(position);
+                final int position = files.indexOf(file);
+                if(position!=-1) {
+                    replaceFile(position, file, true);
                 }
             }
         });
@@ -276,7 +522,7 @@ public class DirectoryObserver implements FileListener {
 
     private void updateForTransaction(final FileTransaction transaction, final int indexUpdated) {
         final File file;
-        if(transaction.getStatus()==FileTransaction.STATUS_COMPLETE || indexUpdated < transaction.getActionableIndex()) {
+        if(transaction.getStatus()==FileTransaction.STATUS_COMPLETE || transaction.isIndexComplete(indexUpdated)) {
             file = new SyncedFile(observedPath, transaction, indexUpdated);
         } else {
             file = new PendingFile(observedPath, transaction, indexUpdated);
@@ -284,16 +530,11 @@ public class DirectoryObserver implements FileListener {
 
         final int position = files.indexOf(file);
         if(position!=-1) {
-            final File existing = files.remove(position);
-            files.add(position, file);
-
-            if(!file.getClass().equals(existing.getClass())) {
-                adapter.notifyItemChanged(position);
-            }
-        } else if(!localNodeId.equals(transaction.sourceNode) || !transaction.hasDeleted()) {
+            final File existing = files.get(position);
+            replaceFile(position, file, !file.getClass().equals(existing.getClass()));
+        } else if(!localNodeId.equals(transaction.sourceNode) || !transaction.hasDeleted(indexUpdated)) {
             if(fileFilter==null || fileFilter.display(file)) {
-                files.add(file);
-                adapter.notifyItemInserted(files.size() - 1);
+                insertFile(file);
             }
         }
     }
@@ -0,0 +1,245 @@
+package me.denley.notary;
+
+import android.os.FileObserver;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+/**
+ * A record of the contents of a directory, kept so that listings can be answered with only
+ * the changes made since the requester's last listing.
+ *
+ * Each rescan that finds a change increments the directory's generation, and every entry
+ * records the generation in which it last changed. Removed entries are kept as tombstones,
+ * so that their removal can be reported. The directory is only rescanned after a
+ * {@link FileObserver} has reported an event in it.
+ *
+ * Generations are only comparable within an epoch, which is chosen at random when the record
+ * is created. A requester with a listing from another epoch is sent the full listing.
+ */
+final class DirectorySnapshot {
+
+    /** The number of directories that records are kept for. Each one holds an inotify watch. */
+    private static final int MAX_SNAPSHOTS = 8;
+
+    /** Once there are more tombstones than this, they are discarded, and older generations get full listings. */
+    private static final int MAX_TOMBSTONES = 1024;
+
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+            | FileObserver.MODIFY | FileObserver.CLOSE_WRITE | FileObserver.ATTRIB
+            | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+    private static final Map<String, DirectorySnapshot> SNAPSHOTS = new LinkedHashMap<String, DirectorySnapshot>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, DirectorySnapshot> eldest) {
+            if(size() > MAX_SNAPSHOTS) {
+                eldest.getValue().observer.stopWatching();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private static final class Entry {
+        @NonNull FileMetadata metadata = FileMetadata.MISSING;
+        boolean removed;
+        long generation;
+    }
+
+    @NonNull private final File directory;
+    @NonNull private final FileObserver observer;
+    private final long epoch = UUID.randomUUID().getMostSignificantBits();
+
+    /** Sorted by name, so that pages can start after a cursor. */
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    private long generation = 0;
+
+    /** Changes made before this generation are no longer known. */
+    private long oldestKnownGeneration = 0;
+    private int tombstoneCount = 0;
+
+    private volatile boolean dirty = true;
+
+    private DirectorySnapshot(@NonNull final File directory) {
+        this.directory = directory;
+        observer = new FileObserver(directory.getAbsolutePath(), EVENTS) {
+            @Override public void onEvent(int event, String path) {
+                switch(event & FileObserver.ALL_EVENTS) {
+                    case FileObserver.DELETE_SELF:
+                    case FileObserver.MOVE_SELF:
+                        // The watch doesn't follow a new directory at the same path
+                        discard(DirectorySnapshot.this);
+                        break;
+                    default:
+                        dirty = true;
+                }
+            }
+        };
+        observer.startWatching();
+    }
+
+    /**
+     * @param directory An existing directory.
+     */
+    @NonNull static DirectorySnapshot forDirectory(@NonNull final File directory) {
+        final String key = directory.getAbsolutePath();
+        synchronized (SNAPSHOTS) {
+            DirectorySnapshot snapshot = SNAPSHOTS.get(key);
+            if(snapshot==null) {
+                snapshot = new DirectorySnapshot(directory);
+                SNAPSHOTS.put(key, snapshot);
+            }
+            return snapshot;
+        }
+    }
+
+    private static void discard(@NonNull final DirectorySnapshot snapshot) {
+        synchronized (SNAPSHOTS) {
+            final String key = snapshot.directory.getAbsolutePath();
+            if(SNAPSHOTS.get(key)==snapshot) {
+                SNAPSHOTS.remove(key);
+            }
+        }
+        snapshot.observer.stopWatching();
+    }
+
+    /**
+     * Lists one page of the directory, in order of name. If the request gives a generation from
+     * this epoch, the page only contains the entries that changed after it.
+     */
+    @WorkerThread
+    synchronized void fillPage(@NonNull final FileListRequest request, @NonNull final FileListContainer response) {
+        if(dirty) {
+            // Cleared first, so that events during the scan cause another one
+            dirty = false;
+            rescan();
+        }
+
+        response.epoch = epoch;
+        response.generation = generation;
+
+        final boolean delta = request.sinceGeneration!=FileListRequest.NO_GENERATION
+                && request.epoch==epoch
+                && request.sinceGeneration >= oldestKnownGeneration
+                && request.sinceGeneration <= generation;
+
+        if(delta && request.sinceGeneration==generation && request.cursor==null) {
+            response.kind = FileListContainer.KIND_UNCHANGED;
+            response.setFileCount(0);
+            return;
+        }
+        response.kind = delta ? FileListContainer.KIND_DELTA : FileListContainer.KIND_FULL;
+
+        final Map<String, Entry> candidates = request.cursor==null ? entries : entries.tailMap(request.cursor, false);
+        final int limit = request.pageSize<=0 ? Integer.MAX_VALUE : request.pageSize;
+
+        final List<Map.Entry<String, Entry>> listed = new ArrayList<>();
+        boolean more = false;
+        for(Map.Entry<String, Entry> candidate:candidates.entrySet()) {
+            final Entry entry = candidate.getValue();
+            if(delta ? entry.generation <= request.sinceGeneration : entry.removed) {
+                continue;
+            }
+            if(listed.size()==limit) {
+                more = true;
+                break;
+            }
+            listed.add(candidate);
+        }
+
+        final int count = listed.size();
+        response.setFileCount(count);
+        if(delta) {
+            response.isRemoved = new boolean[count];
+        }
+        for (int i = 0; i < count; i++) {
+            final Entry entry = listed.get(i).getValue();
+            response.files[i] = listed.get(i).getKey();
+            response.isDirectory[i] = entry.metadata.isDirectory;
+            response.lengths[i] = entry.metadata.length;
+            response.lastModified[i] = entry.metadata.lastModified;
+            if(delta) {
+                response.isRemoved[i] = entry.removed;
+            }
+        }
+        response.nextCursor = more ? response.files[count - 1] : null;
+    }
+
+    private void rescan() {
+        final long scanGeneration = generation + 1;
+        boolean changed = false;
+
+        final String[] names = directory.list();
+        final TreeMap<String, FileMetadata> present = new TreeMap<>();
+        if(names!=null) {
+            for(String name:names) {
+                if(!FileTransaction.isPartialFileName(name)) {
+                    final FileMetadata metadata = FileMetadata.stat(new File(directory, name));
+                    if(metadata.exists) {
+                        present.put(name, metadata);
+                    }
+                }
+            }
+        }
+
+        for(Map.Entry<String, FileMetadata> file:present.entrySet()) {
+            final FileMetadata metadata = file.getValue();
+            Entry entry = entries.get(file.getKey());
+            if(entry==null) {
+                entry = new Entry();
+                entries.put(file.getKey(), entry);
+            } else if(entry.removed) {
+                tombstoneCount--;
+            } else if(entry.metadata.isDirectory==metadata.isDirectory
+                    && entry.metadata.length==metadata.length
+                    && entry.metadata.lastModified==metadata.lastModified) {
+                continue;
+            }
+            entry.metadata = metadata;
+            entry.removed = false;
+            entry.generation = scanGeneration;
+            changed = true;
+        }
+
+        final Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<String, Entry> existing = iterator.next();
+            final Entry entry = existing.getValue();
+            if(!entry.removed && !present.containsKey(existing.getKey())) {
+                entry.removed = true;
+                entry.generation = scanGeneration;
+                tombstoneCount++;
+                changed = true;
+            }
+        }
+
+        if(changed) {
+            generation = scanGeneration;
+        }
+
+        if(tombstoneCount > MAX_TOMBSTONES) {
+            pruneTombstones();
+        }
+    }
+
+    private void pruneTombstones() {
+        final Iterator<Entry> iterator = entries.values().iterator();
+        while(iterator.hasNext()) {
+            if(iterator.next().removed) {
+                iterator.remove();
+            }
+        }
+        tombstoneCount = 0;
+        oldestKnownGeneration = generation;
+    }
+
+}
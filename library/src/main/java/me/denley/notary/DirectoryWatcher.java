@@ -0,0 +1,202 @@
+package me.denley.notary;
+
+import android.os.FileObserver;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Watches a directory, and optionally its subdirectories, for changes.
+ *
+ * Each watched directory needs its own {@link FileObserver}, and the number of inotify watches
+ * available to an app is limited, so at most a fixed number of directories are watched.
+ * Subdirectories are watched in breadth-first order until that budget is spent. Watches are added
+ * as subdirectories appear, and removed as they disappear, without rescanning the rest of the tree.
+ *
+ * Events are reported to a {@link FileEventBatcher}, by path relative to the root directory.
+ */
+final class DirectoryWatcher {
+
+    private static final String TAG = "Notary";
+
+    /** Set in events for directories. Not exposed by FileObserver. */
+    private static final int IN_ISDIR = 0x40000000;
+
+    @NonNull private final String root;
+    private final int maxWatchedDirectories;
+    @NonNull private final FileEventBatcher batcher;
+
+    /** Watches by relative directory path. The root directory has an empty path. */
+    private final Map<String, FileObserver> watchers = new LinkedHashMap<>();
+
+    private boolean stopped = false;
+
+    /**
+     * @param maxWatchedDirectories The maximum number of directories to watch, including the root.
+     *                              Only the root is watched if this is 1.
+     */
+    DirectoryWatcher(@NonNull final String root, final int maxWatchedDirectories, @NonNull final FileEventBatcher batcher) {
+        if(maxWatchedDirectories < 1) {
+            throw new IllegalArgumentException("At least one directory must be watched");
+        }
+        this.root = root;
+        this.maxWatchedDirectories = maxWatchedDirectories;
+        this.batcher = batcher;
+    }
+
+    boolean isRecursive() {
+        return maxWatchedDirectories > 1;
+    }
+
+    /**
+     * Starts watching the root directory, and as many of its subdirectories as the budget allows.
+     *
+     * @return The contents of every watched directory, each read with a single stat.
+     */
+    @WorkerThread
+    @NonNull List<File> startWatching() {
+        final List<File> contents = new ArrayList<>();
+
+        final Deque<String> directories = new ArrayDeque<>();
+        directories.add("");
+        while(!directories.isEmpty()) {
+            final String directory = directories.poll();
+            if(!watch(directory)) {
+                continue;
+            }
+
+            final java.io.File[] children = new java.io.File(root, directory).listFiles();
+            if(children==null) {
+                continue;
+            }
+            for(java.io.File child:children) {
+                final FileMetadata metadata = FileMetadata.stat(child);
+                if(!metadata.exists) {
+                    continue;
+                }
+                contents.add(new File(child.getAbsolutePath(), metadata));
+                if(isRecursive() && metadata.isDirectory) {
+                    directories.add(getRelativePath(directory, child.getName()));
+                }
+            }
+        }
+
+        return contents;
+    }
+
+    synchronized void stopWatching() {
+        stopped = true;
+        for(FileObserver observer:watchers.values()) {
+            observer.stopWatching();
+        }
+        watchers.clear();
+    }
+
+    /**
+     * @return Whether the directory is now being watched.
+     */
+    private synchronized boolean watch(@NonNull final String directory) {
+        if(stopped) {
+            return false;
+        } else if(watchers.containsKey(directory)) {
+            return true;
+        } else if(watchers.size() >= maxWatchedDirectories) {
+            if(isRecursive()) {
+                Log.w(TAG, "Not watching " + directory + ", as " + maxWatchedDirectories + " directories are already being watched");
+            }
+            return false;
+        }
+
+        final FileObserver observer = new FileObserver(new java.io.File(root, directory).getAbsolutePath()) {
+            @Override public void onEvent(int event, String path) {
+                onFileSystemEvent(directory, event, path);
+            }
+        };
+        watchers.put(directory, observer);
+        observer.startWatching();
+        return true;
+    }
+
+    /**
+     * Stops watching the directory and every directory below it.
+     */
+    private synchronized void unwatch(@NonNull final String directory) {
+        final String prefix = directory + "/";
+        final Iterator<Map.Entry<String, FileObserver>> iterator = watchers.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<String, FileObserver> entry = iterator.next();
+            if(entry.getKey().equals(directory) || entry.getKey().startsWith(prefix)) {
+                entry.getValue().stopWatching();
+                iterator.remove();
+            }
+        }
+    }
+
+    private void onFileSystemEvent(@NonNull final String directory, final int event, @Nullable final String name) {
+        if(name==null) {
+            // The removal of a subdirectory is also reported by its parent
+            if(directory.isEmpty()) {
+                batcher.onEvent(event, null);
+            }
+            return;
+        }
+
+        final String path = getRelativePath(directory, name);
+
+        if(isRecursive() && (event & IN_ISDIR)!=0) {
+            switch(event & FileObserver.ALL_EVENTS) {
+                case FileObserver.CREATE:
+                case FileObserver.MOVED_TO:
+                    batcher.post(new Runnable() {
+                        @Override public void run() {
+                            watchNewDirectory(path);
+                        }
+                    });
+                    break;
+                case FileObserver.DELETE:
+                case FileObserver.MOVED_FROM:
+                    unwatch(path);
+                    break;
+            }
+        }
+
+        batcher.onEvent(event, path);
+    }
+
+    /**
+     * Watches a directory that has just appeared, and reports its existing contents. Anything
+     * created in it before the watch was added would otherwise be missed.
+     */
+    @WorkerThread
+    private void watchNewDirectory(@NonNull final String directory) {
+        if(!watch(directory)) {
+            return;
+        }
+
+        final java.io.File[] children = new java.io.File(root, directory).listFiles();
+        if(children==null) {
+            return;
+        }
+        for(java.io.File child:children) {
+            final String path = getRelativePath(directory, child.getName());
+            batcher.onEvent(FileObserver.CREATE, path);
+            if(child.isDirectory()) {
+                watchNewDirectory(path);
+            }
+        }
+    }
+
+    @NonNull private static String getRelativePath(@NonNull final String directory, @NonNull final String name) {
+        return directory.isEmpty() ? name : directory + "/" + name;
+    }
+
+}
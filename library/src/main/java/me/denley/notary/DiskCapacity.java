@@ -0,0 +1,296 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItem;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.DataMapItem;
+import com.google.android.gms.wearable.Node;
+import com.google.android.gms.wearable.PutDataMapRequest;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Publishes this node's storage capacity to the data layer, and keeps the capacity last published
+ * by each peer.
+ *
+ * A new capacity is only published when the available space has changed by more than a threshold,
+ * at most once per interval. A change made during the interval is published once it ends. An
+ * unchanged capacity is published again before peers would consider it too old to rely on.
+ */
+final class DiskCapacity {
+
+    private static final String TAG = "Notary";
+
+    private static final String KEY_TOTAL_SPACE = "total_space";
+    private static final String KEY_AVAILABLE_SPACE = "available_space";
+    private static final String KEY_TIMESTAMP = "timestamp";
+
+    static final long MIN_PUBLISH_INTERVAL_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    /** Smaller changes in available space are not published. */
+    private static final long MIN_CHANGE_BYTES = 16 * 1024 * 1024;
+
+    /** Changes smaller than this fraction of the total space are not published either. */
+    private static final int MIN_CHANGE_DIVISOR = 100;
+
+    /** A peer's capacity is not relied on once it is older than this. */
+    static final long MAX_PEER_AGE_MILLIS = DateUtils.HOUR_IN_MILLIS;
+
+    /** How far the peer's clock may be from this node's, when a capacity is aged by when it was read. */
+    static final long MAX_CLOCK_DIFFERENCE_MILLIS = 5 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final Object LOCK = new Object();
+
+    /** The capacity this node last published, or null if it isn't known yet. */
+    @Nullable private static Capacity published;
+    private static long publishedAt;
+    private static boolean publishScheduled = false;
+
+    /** The capacity last published by each peer, by node ID. */
+    private static final Map<String, Capacity> PEERS = new HashMap<>();
+    /** When each peer's capacity was received, in {@link SystemClock#elapsedRealtime()}, by node ID. */
+    private static final Map<String, Long> PEER_RECEIVED_AT = new HashMap<>();
+
+    private DiskCapacity() {}
+
+    /**
+     * Publishes this node's capacity if it has changed enough since it was last published.
+     */
+    @WorkerThread
+    static void publishIfChanged(@NonNull final Context context) {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient==null) {
+            return;
+        }
+
+        try {
+            final java.io.File directory = new java.io.File(FileTransaction.getDefaultDirectory(context));
+            final Capacity current = new Capacity(directory.getTotalSpace(), directory.getUsableSpace(), System.currentTimeMillis());
+
+            final boolean loaded;
+            synchronized (LOCK) {
+                loaded = published!=null;
+            }
+            // Not known since the process started, so read what was published before then. Loaded
+            // without holding the lock, as it waits on the data layer.
+            final Capacity previous = loaded ? null : loadPublished(apiClient);
+
+            synchronized (LOCK) {
+                if(published==null) {
+                    published = previous;
+                    publishedAt = 0;
+                }
+
+                if(published!=null && !isSignificantChange(published, current)) {
+                    return;
+                }
+
+                final long wait = publishedAt + MIN_PUBLISH_INTERVAL_MILLIS - SystemClock.elapsedRealtime();
+                if(publishedAt!=0 && wait > 0) {
+                    if(!publishScheduled) {
+                        publishScheduled = true;
+                        schedulePublish(context, wait);
+                    }
+                    return;
+                }
+
+                published = current;
+                publishedAt = SystemClock.elapsedRealtime();
+            }
+
+            final PutDataMapRequest request = PutDataMapRequest.create(Notary.PATH_DISK_CAPACITY);
+            final DataMap map = request.getDataMap();
+            map.putLong(KEY_TOTAL_SPACE, current.totalSpace);
+            map.putLong(KEY_AVAILABLE_SPACE, current.availableSpace);
+            map.putLong(KEY_TIMESTAMP, current.timestamp);
+            Wearable.DataApi.putDataItem(apiClient, request.asPutDataRequest()).await();
+        } finally {
+            SharedApiClient.release();
+        }
+    }
+
+    private static boolean isSignificantChange(@NonNull final Capacity previous, @NonNull final Capacity current) {
+        final long threshold = Math.max(MIN_CHANGE_BYTES, current.totalSpace / MIN_CHANGE_DIVISOR);
+        return previous.totalSpace!=current.totalSpace
+                || Math.abs(previous.availableSpace - current.availableSpace) >= threshold
+                || current.timestamp - previous.timestamp >= MAX_PEER_AGE_MILLIS / 2;
+    }
+
+    private static void schedulePublish(@NonNull final Context context, final long delayMillis) {
+        final Context applicationContext = context.getApplicationContext();
+        HANDLER.postDelayed(new Runnable() {
+            @Override public void run() {
+                NotaryExecutor.execute(new Runnable() {
+                    @Override public void run() {
+                        synchronized (LOCK) {
+                            publishScheduled = false;
+                        }
+                        publishIfChanged(applicationContext);
+                    }
+                });
+            }
+        }, delayMillis);
+    }
+
+    @WorkerThread
+    @Nullable private static Capacity loadPublished(@NonNull final GoogleApiClient apiClient) {
+        final Node localNode = Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+        return localNode==null ? null : load(apiClient, localNode.getId());
+    }
+
+    @WorkerThread
+    @Nullable private static Capacity load(@NonNull final GoogleApiClient apiClient, @NonNull final String node) {
+        final Uri uri = new Uri.Builder()
+                .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                .authority(node)
+                .path(Notary.PATH_DISK_CAPACITY)
+                .build();
+        final DataApi.DataItemResult result = Wearable.DataApi.getDataItem(apiClient, uri).await();
+        return result.getDataItem()==null ? null : Capacity.fromDataItem(result.getDataItem());
+    }
+
+    static boolean isCapacityItem(@NonNull final DataItem item) {
+        return Notary.PATH_DISK_CAPACITY.equals(item.getUri().getPath());
+    }
+
+    /**
+     * Records a peer's newly published capacity.
+     */
+    static void onPeerCapacityChanged(@NonNull final DataItem item) {
+        final Capacity capacity = Capacity.fromDataItem(item);
+        synchronized (LOCK) {
+            if(capacity==null) {
+                PEERS.remove(item.getUri().getHost());
+                PEER_RECEIVED_AT.remove(item.getUri().getHost());
+            } else {
+                PEERS.put(item.getUri().getHost(), capacity);
+                PEER_RECEIVED_AT.put(item.getUri().getHost(), SystemClock.elapsedRealtime());
+            }
+        }
+    }
+
+    /**
+     * @return The available space that the given node last published, or -1 if it isn't known or is too old to rely on.
+     * The age of a capacity received by this process is measured from when it was received, as the peer's clock may not
+     * agree with this node's. Otherwise, the peer's published capacity is loaded from the data layer and aged by when it
+     * was read, allowing for a difference between the clocks.
+     */
+    @WorkerThread
+    static long getAvailableSpace(@NonNull final GoogleApiClient apiClient, @NonNull final String node) {
+        synchronized (LOCK) {
+            final Capacity capacity = PEERS.get(node);
+            final Long receivedAt = PEER_RECEIVED_AT.get(node);
+            if(capacity!=null && receivedAt!=null && SystemClock.elapsedRealtime() - receivedAt <= MAX_PEER_AGE_MILLIS) {
+                return capacity.availableSpace;
+            }
+        }
+
+        // Loaded without holding the lock, as it waits on the data layer
+        final Capacity capacity = load(apiClient, node);
+        if(capacity==null) {
+            return -1;
+        }
+
+        // Aged as if the peer's clock were as far ahead as it may be
+        final long age = System.currentTimeMillis() - capacity.timestamp + MAX_CLOCK_DIFFERENCE_MILLIS;
+        if(age > MAX_PEER_AGE_MILLIS || age < 0) {
+            // Too old, or read by a clock too far ahead to tell
+            return -1;
+        }
+
+        synchronized (LOCK) {
+            // Kept until it is the same age as it would be if it had just been received, unless a newer one arrived meanwhile
+            if(!PEER_RECEIVED_AT.containsKey(node) || PEER_RECEIVED_AT.get(node) < SystemClock.elapsedRealtime() - age) {
+                PEERS.put(node, capacity);
+                PEER_RECEIVED_AT.put(node, SystemClock.elapsedRealtime() - age);
+            }
+        }
+        return capacity.availableSpace;
+    }
+
+    /**
+     * Checks whether the destination of a new transaction has room for its files. Only transfers
+     * from this node can be checked, as the size of a remote file isn't known until it is loaded.
+     *
+     * @return False if the files are known not to fit, otherwise true.
+     */
+    @WorkerThread
+    static boolean hasSpaceFor(@NonNull final Context context, @NonNull final GoogleApiClient apiClient,
+                               @NonNull final FileTransaction transaction) {
+        if(transaction.isDeleteOnlyTransaction) {
+            return true;
+        }
+
+        final Node localNode = Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+        if(localNode==null || !localNode.getId().equals(transaction.sourceNode)) {
+            return true;
+        }
+
+        final long available;
+        if(transaction.destinationNode.equals(transaction.sourceNode)) {
+            available = transaction.getDestinationDirectoryFile(context).getUsableSpace();
+        } else {
+            available = getAvailableSpace(apiClient, transaction.destinationNode);
+        }
+        if(available < 0) {
+            return true;
+        }
+
+        long required = 0;
+        for (int i = 0; i < transaction.getSourceFileCount(); i++) {
+            required += FileMetadata.stat(transaction.getSourceFile(context, i)).length;
+        }
+
+        if(required > available) {
+            Log.w(TAG, "Rejecting transfer of " + required + " bytes to a node with " + available + " bytes available");
+            return false;
+        }
+        return true;
+    }
+
+
+    private static final class Capacity {
+        final long totalSpace;
+        final long availableSpace;
+
+        /** When the capacity was read, in milliseconds since the epoch on the node that read it. */
+        final long timestamp;
+
+        Capacity(final long totalSpace, final long availableSpace, final long timestamp) {
+            this.totalSpace = totalSpace;
+            this.availableSpace = availableSpace;
+            this.timestamp = timestamp;
+        }
+
+        @Nullable static Capacity fromDataItem(@NonNull final DataItem item) {
+            if(item.getData()==null || item.getData().length==0) {
+                return null;
+            }
+
+            final DataMap map = DataMapItem.fromDataItem(item).getDataMap();
+            if(!map.containsKey(KEY_TIMESTAMP)) {
+                // Published by an older version, so it's not known how old it is
+                return null;
+            }
+            return new Capacity(map.getLong(KEY_TOTAL_SPACE), map.getLong(KEY_AVAILABLE_SPACE), map.getLong(KEY_TIMESTAMP));
+        }
+    }
+
+}
@@ -3,71 +3,192 @@ package me.denley.notary;
 import android.support.annotation.NonNull;
 
 import java.util.Comparator;
+import java.util.Locale;
 
+/**
+ * A file, and its metadata as of when it was read.
+ *
+ * Files are kept in large numbers, so each one only holds its name. The directory it is in is
+ * shared with the other files there, the name is case-folded once, and the metadata flags are
+ * packed into a single field.
+ */
 @SuppressWarnings("unused")
 public class File {
 
     public static Comparator<File> SORT_ALPHABETICAL = new Comparator<File>() {
         @Override public int compare(@NonNull File lhs, @NonNull File rhs) {
-            return lhs.path.compareToIgnoreCase(rhs.path);
+            return lhs.compareKeys(rhs);
         }
     };
 
     public static Comparator<File> SORT_ALPHABETICAL_DIRECTORIES_FIRST = new Comparator<File>() {
         @Override public int compare(@NonNull File lhs, @NonNull File rhs) {
-            if(lhs.isDirectory && !rhs.isDirectory) {
+            if(lhs.isDirectory() && !rhs.isDirectory()) {
                 return -1;
-            } else if(!lhs.isDirectory && rhs.isDirectory) {
+            } else if(!lhs.isDirectory() && rhs.isDirectory()) {
                 return 1;
             } else {
-                return lhs.path.compareToIgnoreCase(rhs.path);
+                return lhs.compareKeys(rhs);
             }
         }
     };
 
+    private static final int FLAG_DIRECTORY = 1;
+    private static final int FLAG_CAN_READ = 1 << 1;
+    private static final int FLAG_CAN_WRITE = 1 << 2;
+
+    @NonNull private final FileDirectory directory;
+    @NonNull private final String name;
+
+    /** The name, case-folded. The same instance as the name if it has no upper case characters. */
+    @NonNull private final String nameKey;
+
+    private final int flags;
+    private final int hashCode;
+    private final long length;
+    private final long lastModified;
+
     public File(String directory, String fileName) {
         this(new java.io.File(directory, fileName));
     }
 
     public File(java.io.File file) {
-        path = file.getAbsolutePath();
-        isDirectory = file.isDirectory();
-        canRead = file.canRead();
-        canWrite = file.canWrite();
+        this(file.getAbsolutePath(), FileMetadata.stat(file));
     }
 
     protected File(String path, boolean isDirectory, boolean canRead, boolean canWrite) {
-        this.path = path;
-        this.isDirectory = isDirectory;
-        this.canWrite = canWrite;
-        this.canRead = canRead;
+        this(path, isDirectory, canRead, canWrite, 0, 0);
+    }
+
+    protected File(String path, boolean isDirectory, boolean canRead, boolean canWrite, long length, long lastModified) {
+        final int separator = path.lastIndexOf('/');
+        directory = FileDirectory.of(separator<=0 ? "/" : path.substring(0, separator));
+        name = path.substring(separator + 1);
+        nameKey = name.toLowerCase(Locale.US);
+        flags = (isDirectory ? FLAG_DIRECTORY : 0) | (canRead ? FLAG_CAN_READ : 0) | (canWrite ? FLAG_CAN_WRITE : 0);
+        hashCode = 31 * directory.keyPrefix.hashCode() + nameKey.hashCode();
+        this.length = length;
+        this.lastModified = lastModified;
     }
 
-    public final String path;
-    public final boolean isDirectory;
-    public final boolean canRead;
-    public final boolean canWrite;
+    File(String path, @NonNull FileMetadata metadata) {
+        this(path, metadata.isDirectory, metadata.canRead, metadata.canWrite, metadata.length, metadata.lastModified);
+    }
 
-    @NonNull public java.io.File getIoFile() {
-        return new java.io.File(path);
+    /**
+     * Copies another file, without reading it from disk again.
+     */
+    File(@NonNull File file) {
+        directory = file.directory;
+        name = file.name;
+        nameKey = file.nameKey;
+        flags = file.flags;
+        hashCode = file.hashCode;
+        length = file.length;
+        lastModified = file.lastModified;
+    }
+
+    /**
+     * @return The absolute path of the file.
+     */
+    @NonNull public String getPath() {
+        return directory.prefix + name;
+    }
+
+    @NonNull public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return (flags & FLAG_DIRECTORY)!=0;
+    }
+
+    public boolean canRead() {
+        return (flags & FLAG_CAN_READ)!=0;
+    }
+
+    public boolean canWrite() {
+        return (flags & FLAG_CAN_WRITE)!=0;
+    }
+
+    /**
+     * @return The size in bytes, or 0 for a directory.
+     */
+    public long length() {
+        return length;
     }
 
-    public String getName() {
-        return getIoFile().getName();
+    /**
+     * @return The modification time in milliseconds, to the second.
+     */
+    public long lastModified() {
+        return lastModified;
+    }
+
+    @NonNull public java.io.File getIoFile() {
+        return new java.io.File(getPath());
     }
 
     @NonNull public String getFileSuffix(){
-        final String name = getName();
-        final int dotPos = name.lastIndexOf(".");
+        return getFileSuffix(name);
+    }
+
+    /**
+     * @return The part of the file name after the last dot, or an empty string if it has none.
+     */
+    @NonNull static String getFileSuffix(@NonNull String fileName) {
+        final int dotPos = fileName.lastIndexOf(".");
         if(dotPos==-1) {
             return "";
         } else {
-            return name.substring(dotPos + 1);
+            return fileName.substring(dotPos + 1);
+        }
+    }
+
+    /**
+     * @return The absolute path of the directory that the file is in.
+     */
+    @NonNull String getDirectoryPath() {
+        return directory.getPath();
+    }
+
+    /**
+     * @return The path in a form that is equal for any two files that are {@link #equals(Object) equal}.
+     */
+    @NonNull String getKey() {
+        return directory.keyPrefix + nameKey;
+    }
+
+    boolean hasSameMetadata(@NonNull File other) {
+        return flags==other.flags && length==other.length && lastModified==other.lastModified;
+    }
+
+    /**
+     * Compares case-folded paths, only building them for files in different directories.
+     */
+    private int compareKeys(@NonNull File other) {
+        if(directory==other.directory) {
+            return nameKey.compareTo(other.nameKey);
+        } else {
+            return getKey().compareTo(other.getKey());
         }
     }
 
     @Override public boolean equals(Object o) {
-        return o!=null && o instanceof File && ((File) o).path.equalsIgnoreCase(path);
+        if(o==this) {
+            return true;
+        } else if(!(o instanceof File)) {
+            return false;
+        }
+
+        final File other = (File) o;
+        return hashCode==other.hashCode
+                && nameKey.equals(other.nameKey)
+                && directory.keyPrefix.equals(other.directory.keyPrefix);
+    }
+
+    @Override public int hashCode() {
+        return hashCode;
     }
 
 }
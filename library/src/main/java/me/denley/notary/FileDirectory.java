@@ -0,0 +1,52 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+
+import java.lang.ref.WeakReference;
+import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The directory part of a {@link File}'s path, shared by every file in that directory.
+ *
+ * Instances are interned, so that a directory's path and case-folded key are only held once
+ * however many files it contains. An instance is discarded once no file refers to it.
+ */
+final class FileDirectory {
+
+    /** Weakly keyed by each instance's own path, so that an entry lasts as long as its instance. */
+    private static final Map<String, WeakReference<FileDirectory>> DIRECTORIES = new WeakHashMap<>();
+
+    /** The absolute path, ending with a separator. */
+    @NonNull final String prefix;
+
+    /** The prefix, case-folded so that it is equal for any two paths that only differ by case. */
+    @NonNull final String keyPrefix;
+
+    private FileDirectory(@NonNull final String prefix) {
+        this.prefix = prefix;
+        keyPrefix = prefix.toLowerCase(Locale.US);
+    }
+
+    /**
+     * @param path An absolute directory path.
+     */
+    @NonNull static FileDirectory of(@NonNull final String path) {
+        final String prefix = path.endsWith("/") ? path : path + "/";
+        synchronized (DIRECTORIES) {
+            final WeakReference<FileDirectory> reference = DIRECTORIES.get(prefix);
+            FileDirectory directory = reference==null ? null : reference.get();
+            if(directory==null) {
+                directory = new FileDirectory(prefix);
+                DIRECTORIES.put(directory.prefix, new WeakReference<>(directory));
+            }
+            return directory;
+        }
+    }
+
+    @NonNull String getPath() {
+        return prefix.length()==1 ? prefix : prefix.substring(0, prefix.length() - 1);
+    }
+
+}
@@ -0,0 +1,177 @@
+package me.denley.notary;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects file system events for a directory tree, and delivers them to the main thread in batches.
+ *
+ * Events for the same file within the batch window are folded together, so that only the final
+ * state of each file is delivered: either present (created or modified), or absent (deleted or
+ * moved away). Present files are read from disk on the {@link NotaryExecutor}, one batch at a time.
+ */
+final class FileEventBatcher {
+
+    static final long DEFAULT_WINDOW_MILLIS = 100;
+
+    interface Callback {
+        /**
+         * @param changes The files that changed, by path relative to the observed directory.
+         *                Files that no longer exist have a null value.
+         */
+        @UiThread void onFileEvents(@NonNull Map<String, File> changes);
+
+        /**
+         * Called when the observed directory itself has been deleted or moved.
+         */
+        @UiThread void onDirectoryRemoved();
+    }
+
+    @NonNull private final String directory;
+    @NonNull private final Callback callback;
+    @NonNull private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    @NonNull private final NotaryExecutor.SerialQueue backgroundQueue = new NotaryExecutor.SerialQueue();
+
+    private final Object lock = new Object();
+
+    /** Whether each file that changed in the current window is present, by name. */
+    @NonNull private Map<String, Boolean> pending = new LinkedHashMap<>();
+    private boolean directoryRemoved = false;
+    private boolean flushScheduled = false;
+
+    private volatile long windowMillis = DEFAULT_WINDOW_MILLIS;
+
+    private final Runnable flush = new Runnable() {
+        @Override public void run() {
+            flush();
+        }
+    };
+
+    /** Run on the main thread once the window ends, to queue the flush in order with posted tasks. */
+    private final Runnable scheduleFlush = new Runnable() {
+        @Override public void run() {
+            backgroundQueue.execute(flush);
+        }
+    };
+
+    FileEventBatcher(@NonNull final String directory, @NonNull final Callback callback) {
+        this.directory = directory;
+        this.callback = callback;
+    }
+
+    void setWindowMillis(final long windowMillis) {
+        if(windowMillis < 0) {
+            throw new IllegalArgumentException("Window must not be negative");
+        }
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Records an event from a {@link FileObserver}. May be called on any thread.
+     *
+     * @param fileName The path of the file relative to the observed directory, or null for
+     *                 an event about the observed directory itself.
+     */
+    void onEvent(final int event, @Nullable final String fileName) {
+        final Boolean present;
+        switch(event & FileObserver.ALL_EVENTS) {
+            case FileObserver.MODIFY:
+            case FileObserver.ATTRIB:
+            case FileObserver.MOVED_TO:
+            case FileObserver.CREATE:
+                present = Boolean.TRUE;
+                break;
+            case FileObserver.DELETE:
+            case FileObserver.MOVED_FROM:
+                present = Boolean.FALSE;
+                break;
+            case FileObserver.DELETE_SELF:
+            case FileObserver.MOVE_SELF:
+                present = null;
+                break;
+            default:
+                return;
+        }
+
+        synchronized (lock) {
+            if(present==null) {
+                directoryRemoved = true;
+            } else if(fileName!=null && !FileTransaction.isPartialFileName(new java.io.File(fileName).getName())) {
+                // Re-inserted, so that the batch is in the order that files last changed in
+                pending.remove(fileName);
+                pending.put(fileName, present);
+            } else {
+                return;
+            }
+
+            if(!flushScheduled) {
+                flushScheduled = true;
+                mainHandler.postDelayed(scheduleFlush, windowMillis);
+            }
+        }
+    }
+
+    /**
+     * Runs a task in the background queue that reads changed files, so that it is ordered with their events.
+     */
+    void post(@NonNull final Runnable task) {
+        backgroundQueue.execute(task);
+    }
+
+    /**
+     * Discards any events that have not yet been delivered.
+     */
+    void cancel() {
+        synchronized (lock) {
+            mainHandler.removeCallbacks(scheduleFlush);
+            pending = new LinkedHashMap<>();
+            directoryRemoved = false;
+            flushScheduled = false;
+        }
+    }
+
+    private void flush() {
+        final Map<String, Boolean> batch;
+        final boolean removed;
+        synchronized (lock) {
+            batch = pending;
+            removed = directoryRemoved;
+            pending = new LinkedHashMap<>();
+            directoryRemoved = false;
+            flushScheduled = false;
+        }
+
+        if(removed) {
+            mainHandler.post(new Runnable() {
+                @Override public void run() {
+                    callback.onDirectoryRemoved();
+                }
+            });
+            return;
+        }
+
+        final Map<String, File> changes = new LinkedHashMap<>(batch.size() * 2);
+        for(Map.Entry<String, Boolean> entry:batch.entrySet()) {
+            final java.io.File ioFile = new java.io.File(directory, entry.getKey());
+            // A file may have gone again since its last event
+            final FileMetadata metadata = entry.getValue() ? FileMetadata.stat(ioFile) : FileMetadata.MISSING;
+            changes.put(entry.getKey(), metadata.exists ? new File(ioFile.getAbsolutePath(), metadata) : null);
+        }
+
+        if(!changes.isEmpty()) {
+            mainHandler.post(new Runnable() {
+                @Override public void run() {
+                    callback.onFileEvents(changes);
+                }
+            });
+        }
+    }
+
+}
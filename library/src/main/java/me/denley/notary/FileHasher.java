@@ -0,0 +1,97 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Computes content hashes of files, so that nodes can tell whether they hold identical
+ * files without sending the file contents across the link.
+ */
+final class FileHasher {
+
+    private static final String ALGORITHM = "SHA-1";
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private FileHasher() {}
+
+    /**
+     * @return The hex-encoded content hash of the given file.
+     */
+    @NonNull static String hash(@NonNull final File file) throws IOException {
+        final MessageDigest digest = createDigest();
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Adds the first {@code length} bytes of the given file to the digest.
+     */
+    static void update(@NonNull final MessageDigest digest, @NonNull final File file, final long length) throws IOException {
+        if(length <= 0) {
+            return;
+        }
+
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = length;
+            int count;
+            while (remaining > 0 && (count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining))) != -1) {
+                digest.update(buffer, 0, count);
+                remaining -= count;
+            }
+            if(remaining > 0) {
+                throw new EOFException("File is shorter than " + length + " bytes");
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @param metadata The metadata of the file, already read from disk.
+     * @return Whether the given file has the expected size and content hash.
+     */
+    static boolean matches(@NonNull final File file, @NonNull final FileMetadata metadata,
+                           final long expectedSize, @NonNull final String expectedHash) throws IOException {
+        return metadata.length==expectedSize && expectedHash.equals(hash(file));
+    }
+
+    @NonNull static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(ALGORITHM + " is not supported", e);
+        }
+    }
+
+    @NonNull static String toHex(@NonNull final byte[] bytes) {
+        final char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+        }
+        return new String(chars);
+    }
+
+}
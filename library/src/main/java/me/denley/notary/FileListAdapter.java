@@ -2,12 +2,11 @@ package me.denley.notary;
 
 import android.support.v7.widget.RecyclerView;
 
-import java.util.ArrayList;
 import java.util.List;
 
 public abstract class FileListAdapter extends RecyclerView.Adapter {
 
-    private final List<File> files = new ArrayList<>();
+    private final List<File> files = new IndexedFileList();
 
     protected List<File> getFiles(){
         return files;
@@ -0,0 +1,87 @@
+package me.denley.notary;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * The most recent listings received from remote directories, kept so that later requests
+ * only need to ask for what has changed since.
+ */
+final class FileListCache {
+
+    private static final int MAX_LISTINGS = 16;
+
+    private static final Map<String, Listing> LISTINGS = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+        @Override protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            return size() > MAX_LISTINGS;
+        }
+    };
+
+    /**
+     * A complete listing of a directory, as of a generation of the remote's record of it.
+     */
+    static final class Listing {
+        final long epoch;
+        final long generation;
+
+        /** The {@link SystemClock#elapsedRealtime()} at which the listing was received. */
+        final long receivedAt = SystemClock.elapsedRealtime();
+
+        /** The metadata of each file, by name. Not modified once the listing is cached. */
+        @NonNull final TreeMap<String, FileMetadata> files;
+
+        Listing(final long epoch, final long generation, @NonNull final TreeMap<String, FileMetadata> files) {
+            this.epoch = epoch;
+            this.generation = generation;
+            this.files = files;
+        }
+
+        @NonNull FileListContainer toContainer(@Nullable final String directory) {
+            final FileListContainer container = new FileListContainer();
+            container.directory = directory;
+            container.epoch = epoch;
+            container.generation = generation;
+            container.setFileCount(files.size());
+
+            int i = 0;
+            for(Map.Entry<String, FileMetadata> file:files.entrySet()) {
+                container.files[i] = file.getKey();
+                container.isDirectory[i] = file.getValue().isDirectory;
+                container.lengths[i] = file.getValue().length;
+                container.lastModified[i] = file.getValue().lastModified;
+                i++;
+            }
+            return container;
+        }
+    }
+
+    private FileListCache() {}
+
+    @Nullable static Listing get(@NonNull final String node, @NonNull final String directory) {
+        synchronized (LISTINGS) {
+            return LISTINGS.get(getKey(node, directory));
+        }
+    }
+
+    static void put(@NonNull final String node, @NonNull final String directory, @NonNull final Listing listing) {
+        synchronized (LISTINGS) {
+            LISTINGS.put(getKey(node, directory), listing);
+        }
+    }
+
+    static void remove(@NonNull final String node, @NonNull final String directory) {
+        synchronized (LISTINGS) {
+            LISTINGS.remove(getKey(node, directory));
+        }
+    }
+
+    @NonNull private static String getKey(@NonNull final String node, @NonNull final String directory) {
+        return node + '\n' + directory;
+    }
+
+}
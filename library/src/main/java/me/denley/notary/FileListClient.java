@@ -0,0 +1,310 @@
+package me.denley.notary;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.MessageApi;
+import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests remote directory listings.
+ *
+ * Concurrent requests for the same directory on the same node share a single request, and
+ * complete listings are reused for a short time. Each page request carries a correlation ID that
+ * its response must echo. A page request is retried a bounded number of times, with exponential
+ * backoff, after which the listing fails.
+ */
+final class FileListClient {
+
+    private static final String TAG = "WearApi";
+
+    static final long DEFAULT_CACHE_MILLIS = 5 * DateUtils.SECOND_IN_MILLIS;
+
+    /** The number of times each page is requested before the listing fails. */
+    private static final int MAX_ATTEMPTS = 4;
+
+    /** The time to wait for the first attempt. Doubled for each one after. */
+    private static final long INITIAL_RETRY_DELAY_MILLIS = 2 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final AtomicLong NEXT_REQUEST_ID = new AtomicLong(new Random().nextLong());
+
+    /** Listings in progress, by node and directory. */
+    private static final Map<String, Flight> FLIGHTS = new HashMap<>();
+
+    private static volatile long cacheMillis = DEFAULT_CACHE_MILLIS;
+
+    private FileListClient() {}
+
+    static void setCacheMillis(final long millis) {
+        if(millis < 0) {
+            throw new IllegalArgumentException("Cache time must not be negative");
+        }
+        cacheMillis = millis;
+    }
+
+    static long getCacheMillis() {
+        return cacheMillis;
+    }
+
+    /**
+     * Requests a listing, delivering its pages to the callback on the main thread.
+     *
+     * Takes ownership of one reference to the shared client, which is released once it is no longer needed.
+     * If a listing of the directory is already in progress, the callback joins it, and that
+     * listing's page size is used.
+     */
+    static void request(@NonNull final GoogleApiClient apiClient, @NonNull final String node, @NonNull final String directory,
+                        final int pageSize, @NonNull final Notary.FileListPageCallback callback) {
+        final FileListCache.Listing cached = FileListCache.get(node, directory);
+        if(cached!=null && SystemClock.elapsedRealtime() - cached.receivedAt < cacheMillis) {
+            SharedApiClient.release();
+            HANDLER.post(new Runnable() {
+                @Override public void run() {
+                    callback.onPage(cached.toContainer(directory));
+                }
+            });
+            return;
+        }
+
+        final String key = node + '\n' + directory;
+        final Flight flight;
+        synchronized (FLIGHTS) {
+            final Flight existing = FLIGHTS.get(key);
+            if(existing!=null) {
+                SharedApiClient.release();
+                existing.join(callback);
+                return;
+            }
+
+            flight = new Flight(key, apiClient, node, directory, pageSize, cached);
+            FLIGHTS.put(key, flight);
+        }
+        flight.join(callback);
+        flight.start();
+    }
+
+    @NonNull private static FileListRequest createRequest(@NonNull final String directory, @Nullable final String cursor, final int pageSize,
+                                                          @Nullable final FileListCache.Listing since, final long requestId) {
+        return since==null
+                ? new FileListRequest(directory, cursor, pageSize, 0, FileListRequest.NO_GENERATION, requestId)
+                : new FileListRequest(directory, cursor, pageSize, since.epoch, since.generation, requestId);
+    }
+
+
+    /**
+     * A listing in progress. Requests each page in turn, and delivers them to every callback
+     * that has joined. Callbacks that join part way through are sent the pages delivered so far.
+     *
+     * If an earlier listing of the directory is cached, only the changes since then are requested,
+     * and the updated listing is delivered as a single page. Otherwise pages are delivered as they
+     * arrive. If the remote's record of the directory changes between pages, the listing starts over.
+     *
+     * Everything but construction happens on the main thread.
+     */
+    private static final class Flight implements Runnable, MessageApi.MessageListener {
+        @NonNull private final String key;
+        @NonNull private final GoogleApiClient apiClient;
+        @NonNull private final String node;
+        @NonNull private final String directory;
+        private final int pageSize;
+
+        @NonNull private final List<Notary.FileListPageCallback> callbacks = new ArrayList<>();
+        @NonNull private final List<FileListContainer> delivered = new ArrayList<>();
+        private boolean finished = false;
+        private boolean failed = false;
+
+        /** The listing that changes are being requested against, if any. */
+        @Nullable private FileListCache.Listing cached;
+
+        @Nullable private String cursor = null;
+        private long requestId;
+        private int attempts;
+
+        /** The listing as of the pages received so far. */
+        @Nullable private TreeMap<String, FileMetadata> received;
+        private int kind;
+        private long epoch;
+        private long generation;
+
+        Flight(@NonNull String key, @NonNull GoogleApiClient apiClient, @NonNull String node, @NonNull String directory,
+               int pageSize, @Nullable FileListCache.Listing cached) {
+            this.key = key;
+            this.apiClient = apiClient;
+            this.node = node;
+            this.directory = directory;
+            this.pageSize = pageSize;
+            this.cached = cached;
+        }
+
+        void start() {
+            Wearable.MessageApi.addListener(apiClient, this);
+            HANDLER.post(new Runnable() {
+                @Override public void run() {
+                    requestPage(null);
+                }
+            });
+        }
+
+        void join(@NonNull final Notary.FileListPageCallback callback) {
+            HANDLER.post(new Runnable() {
+                @Override public void run() {
+                    callbacks.add(callback);
+                    for(FileListContainer page:delivered) {
+                        callback.onPage(page);
+                    }
+                    if(failed) {
+                        callback.failure(null);
+                    }
+                }
+            });
+        }
+
+        @UiThread
+        private void requestPage(@Nullable final String pageCursor) {
+            cursor = pageCursor;
+            requestId = NEXT_REQUEST_ID.incrementAndGet();
+            attempts = 0;
+            HANDLER.post(this);
+        }
+
+        /**
+         * Sends the current page request, or fails the listing if it has been sent too many times.
+         */
+        @Override public void run() {
+            if(finished) {
+                return;
+            } else if(attempts==MAX_ATTEMPTS) {
+                Log.w(TAG, "No response to file list request for " + directory + " after " + attempts + " attempts");
+                fail();
+                return;
+            }
+
+            final byte[] request = createRequest(directory, cursor, pageSize, cached, requestId).toByteArray();
+            Wearable.MessageApi.sendMessage(apiClient, node, Notary.REQUEST_LIST_FILES, request);
+            HANDLER.postDelayed(this, INITIAL_RETRY_DELAY_MILLIS << attempts);
+            attempts++;
+        }
+
+        @Override public void onMessageReceived(final MessageEvent messageEvent) {
+            if(!messageEvent.getPath().equals(Notary.RESPONSE_LIST_FILES) || !messageEvent.getSourceNodeId().equals(node)) {
+                return;
+            }
+
+            final FileListContainer page;
+            try {
+                page = FileListCodec.decode(messageEvent.getData());
+            } catch (Exception e) {
+                Log.e(TAG, "Error parsing file list response", e);
+                return;
+            }
+
+            if(!finished && page.requestId==requestId) {
+                HANDLER.removeCallbacks(this);
+                onPage(page);
+            }
+        }
+
+        private void onPage(@NonNull final FileListContainer page) {
+            if(page.outcome!=FileListContainer.SUCCESS) {
+                FileListCache.remove(node, directory);
+                deliver(page);
+                finish();
+                return;
+            }
+
+            if(cursor==null) {
+                kind = page.kind;
+                epoch = page.epoch;
+                // Anything that changed while the later pages were listed is listed again next time
+                generation = page.generation;
+                received = page.kind==FileListContainer.KIND_FULL || cached==null
+                        ? new TreeMap<String, FileMetadata>() : new TreeMap<>(cached.files);
+            } else if(page.kind!=kind || page.epoch!=epoch || received==null) {
+                restart();
+                return;
+            }
+
+            for (int i = 0; i < page.getFileCount(); i++) {
+                if(page.isRemoved!=null && page.isRemoved[i]) {
+                    received.remove(page.files[i]);
+                } else {
+                    received.put(page.files[i], FileMetadata.listed(page.isDirectory[i], page.lengths[i], page.lastModified[i]));
+                }
+            }
+
+            if(kind==FileListContainer.KIND_FULL) {
+                deliver(page);
+            }
+
+            if(page.isLastPage()) {
+                final FileListCache.Listing listing = new FileListCache.Listing(epoch, generation, received);
+                FileListCache.put(node, directory, listing);
+                if(kind!=FileListContainer.KIND_FULL) {
+                    deliver(listing.toContainer(page.directory));
+                }
+                finish();
+            } else {
+                requestPage(page.nextCursor);
+            }
+        }
+
+        /**
+         * Requests the full listing from the start.
+         */
+        private void restart() {
+            FileListCache.remove(node, directory);
+            cached = null;
+            received = null;
+            delivered.clear();
+            requestPage(null);
+        }
+
+        private void deliver(@NonNull final FileListContainer page) {
+            delivered.add(page);
+            for(Notary.FileListPageCallback callback:callbacks) {
+                callback.onPage(page);
+            }
+        }
+
+        private void fail() {
+            failed = true;
+            for(Notary.FileListPageCallback callback:callbacks) {
+                callback.failure(null);
+            }
+            finish();
+        }
+
+        /**
+         * Stops listening for responses. Callbacks that join after this are still sent the outcome.
+         */
+        private void finish() {
+            finished = true;
+            synchronized (FLIGHTS) {
+                if(FLIGHTS.get(key)==this) {
+                    FLIGHTS.remove(key);
+                }
+            }
+            Wearable.MessageApi.removeListener(apiClient, this);
+            SharedApiClient.release();
+        }
+    }
+
+}
@@ -0,0 +1,302 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Encodes file listings for the MessageApi.
+ *
+ * The format is:
+ * <ul>
+ *     <li>A version byte.</li>
+ *     <li>A header byte, with a bit for each of the optional strings that follow.</li>
+ *     <li>The correlation ID of the request, as eight bytes.</li>
+ *     <li>The outcome and kind of listing, as varints.</li>
+ *     <li>The epoch, as eight bytes, and the generation, as a varint.</li>
+ *     <li>The directory, cursor and next cursor, each as a varint length followed by UTF-8 bytes, if present.</li>
+ *     <li>The number of files, as a varint.</li>
+ *     <li>The directory flags of every file, packed eight to a byte.</li>
+ *     <li>For delta listings only, the removed flags of every file, packed the same way.</li>
+ *     <li>For each file, its name, front coded: the number of leading UTF-8 bytes it shares with
+ *     the previous name, then the length and bytes of the rest. Listings are sorted by name, so
+ *     most names share a prefix with the one before. Then its size, and its modification time
+ *     in seconds, as varints.</li>
+ * </ul>
+ */
+final class FileListCodec {
+
+    private static final int VERSION = 4;
+
+    private static final int HAS_DIRECTORY = 1;
+    private static final int HAS_CURSOR = 1 << 1;
+    private static final int HAS_NEXT_CURSOR = 1 << 2;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private FileListCodec() {}
+
+    @NonNull static byte[] encode(@NonNull final FileListContainer container) {
+        final int count = container.getFileCount();
+        final Writer out = new Writer(64 + count * 16);
+
+        out.writeByte(VERSION);
+        out.writeByte((container.directory!=null ? HAS_DIRECTORY : 0)
+                | (container.cursor!=null ? HAS_CURSOR : 0)
+                | (container.nextCursor!=null ? HAS_NEXT_CURSOR : 0));
+        out.writeLong(container.requestId);
+        out.writeVarint(container.outcome);
+        out.writeVarint(container.kind);
+        out.writeLong(container.epoch);
+        out.writeVarLong(container.generation);
+        out.writeString(container.directory);
+        out.writeString(container.cursor);
+        out.writeString(container.nextCursor);
+
+        out.writeVarint(count);
+
+        writeFlags(out, container.isDirectory, count);
+        if(container.kind==FileListContainer.KIND_DELTA) {
+            writeFlags(out, container.isRemoved, count);
+        }
+
+        byte[] previous = new byte[0];
+        for (int i = 0; i < count; i++) {
+            final byte[] name = container.files[i].getBytes(UTF_8);
+            final int shared = sharedPrefixLength(previous, name);
+            out.writeVarint(shared);
+            out.writeVarint(name.length - shared);
+            out.writeBytes(name, shared, name.length - shared);
+            out.writeVarLong(container.lengths[i]);
+            out.writeVarLong(container.lastModified[i] / 1000);
+            previous = name;
+        }
+
+        return out.toByteArray();
+    }
+
+    @NonNull static FileListContainer decode(@NonNull final byte[] data) throws IOException {
+        final Reader in = new Reader(data);
+
+        final int version = in.readByte();
+        if(version!=VERSION) {
+            throw new IOException("Unsupported file list version: " + version);
+        }
+
+        final int header = in.readByte();
+        final FileListContainer container = new FileListContainer();
+        container.requestId = in.readLong();
+        container.outcome = in.readVarint();
+        container.kind = in.readVarint();
+        container.epoch = in.readLong();
+        container.generation = in.readVarLong();
+        container.directory = (header & HAS_DIRECTORY)!=0 ? in.readString() : null;
+        container.cursor = (header & HAS_CURSOR)!=0 ? in.readString() : null;
+        container.nextCursor = (header & HAS_NEXT_CURSOR)!=0 ? in.readString() : null;
+
+        final int count = in.readVarint();
+        // Every file takes at least two bytes, which bounds the count before anything is allocated for it
+        if(count > in.remaining() / 2) {
+            throw new IOException("Invalid file count: " + count);
+        }
+
+        container.isDirectory = readFlags(in, data, count);
+        if(container.kind==FileListContainer.KIND_DELTA) {
+            container.isRemoved = readFlags(in, data, count);
+        }
+
+        container.files = new String[count];
+        container.lengths = new long[count];
+        container.lastModified = new long[count];
+        byte[] name = new byte[64];
+        int nameLength = 0;
+        for (int i = 0; i < count; i++) {
+            final int shared = in.readVarint();
+            final int suffixLength = in.readVarint();
+            if(shared > nameLength) {
+                throw new IOException("Invalid shared prefix length: " + shared);
+            }
+
+            final int length = shared + suffixLength;
+            if(length > name.length) {
+                name = Arrays.copyOf(name, Math.max(length, name.length * 2));
+            }
+            System.arraycopy(data, in.skip(suffixLength), name, shared, suffixLength);
+            nameLength = length;
+
+            container.files[i] = new String(name, 0, nameLength, UTF_8);
+            container.lengths[i] = in.readVarLong();
+            container.lastModified[i] = in.readVarLong() * 1000;
+        }
+
+        return container;
+    }
+
+    private static void writeFlags(@NonNull final Writer out, @Nullable final boolean[] values, final int count) {
+        final byte[] flags = new byte[(count + 7) / 8];
+        for (int i = 0; values!=null && i < count; i++) {
+            if(values[i]) {
+                flags[i >> 3] |= 1 << (i & 7);
+            }
+        }
+        out.writeBytes(flags, 0, flags.length);
+    }
+
+    @NonNull private static boolean[] readFlags(@NonNull final Reader in, @NonNull final byte[] data, final int count) throws IOException {
+        final boolean[] values = new boolean[count];
+        final int start = in.skip((count + 7) / 8);
+        for (int i = 0; i < count; i++) {
+            values[i] = (data[start + (i >> 3)] & (1 << (i & 7)))!=0;
+        }
+        return values;
+    }
+
+    private static int sharedPrefixLength(@NonNull final byte[] a, @NonNull final byte[] b) {
+        final int max = Math.min(a.length, b.length);
+        int i = 0;
+        while(i < max && a[i]==b[i]) {
+            i++;
+        }
+        return i;
+    }
+
+
+    private static final class Writer {
+        private byte[] buffer;
+        private int size = 0;
+
+        Writer(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        void writeByte(int value) {
+            ensureCapacity(1);
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarint(int value) {
+            ensureCapacity(5);
+            while((value & ~0x7F)!=0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeVarLong(long value) {
+            ensureCapacity(10);
+            while((value & ~0x7FL)!=0) {
+                buffer[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[size++] = (byte) value;
+        }
+
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void writeBytes(@NonNull byte[] bytes, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(bytes, offset, buffer, size, length);
+            size += length;
+        }
+
+        void writeString(@Nullable String value) {
+            if(value!=null) {
+                final byte[] bytes = value.getBytes(UTF_8);
+                writeVarint(bytes.length);
+                writeBytes(bytes, 0, bytes.length);
+            }
+        }
+
+        @NonNull byte[] toByteArray() {
+            return Arrays.copyOf(buffer, size);
+        }
+
+        private void ensureCapacity(int extra) {
+            if(size + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(size + extra, buffer.length * 2));
+            }
+        }
+    }
+
+    private static final class Reader {
+        private final byte[] data;
+        private int position = 0;
+
+        Reader(@NonNull byte[] data) {
+            this.data = data;
+        }
+
+        int remaining() {
+            return data.length - position;
+        }
+
+        int readByte() throws IOException {
+            if(position >= data.length) {
+                throw new IOException("Unexpected end of file list");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                final int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80)==0) {
+                    if(value < 0) {
+                        throw new IOException("Invalid length in file list");
+                    }
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in file list");
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                final int b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if((b & 0x80)==0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint in file list");
+        }
+
+        long readLong() throws IOException {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | readByte();
+            }
+            return value;
+        }
+
+        /**
+         * @return The position of the skipped bytes.
+         */
+        int skip(int length) throws IOException {
+            if(length < 0 || length > remaining()) {
+                throw new IOException("Unexpected end of file list");
+            }
+            final int start = position;
+            position += length;
+            return start;
+        }
+
+        @NonNull String readString() throws IOException {
+            final int length = readVarint();
+            return new String(data, skip(length), length, UTF_8);
+        }
+    }
+
+}
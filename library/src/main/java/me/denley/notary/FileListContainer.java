@@ -1,16 +1,91 @@
 package me.denley.notary;
 
-import java.io.Serializable;
-
-public class FileListContainer implements Serializable {
+public class FileListContainer {
 
     public static final int SUCCESS = 0;
     public static final int ERROR_DIRECTORY_NOT_FOUND = 1;
 
+    /** Every file in the directory. */
+    static final int KIND_FULL = 0;
+    /** Only the files added, changed or removed since the requested generation. */
+    static final int KIND_DELTA = 1;
+    /** Nothing has changed since the requested generation. */
+    static final int KIND_UNCHANGED = 2;
+
 
     int outcome = SUCCESS;
     String directory;
     String[] files;
     boolean[] isDirectory;
+    long[] lengths;
+    long[] lastModified;
+
+    /** Set in delta listings, for files that have been removed. */
+    boolean[] isRemoved;
+
+    int kind = KIND_FULL;
+
+    /** Identifies the remote's record of the directory. Generations from different epochs can't be compared. */
+    long epoch;
+
+    /** The generation of the remote's record of the directory that this page was taken from. */
+    long generation;
+
+    /** The correlation ID of the request that this page answers. */
+    long requestId;
+
+    /** The cursor that this page was requested with, or null for the first page. */
+    String cursor;
+
+    /** The cursor for the next page, or null if this is the last page. */
+    String nextCursor;
+
+    public int getOutcome() {
+        return outcome;
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public int getFileCount() {
+        return files==null ? 0 : files.length;
+    }
+
+    public String getFileName(int index) {
+        return files[index];
+    }
+
+    public boolean isDirectory(int index) {
+        return isDirectory[index];
+    }
+
+    /**
+     * @return The size of the file in bytes, or 0 for a directory.
+     */
+    public long getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * @return The modification time of the file in milliseconds, to the second.
+     */
+    public long getLastModified(int index) {
+        return lastModified[index];
+    }
+
+    /**
+     * Sets the file arrays to the given size.
+     */
+    void setFileCount(int count) {
+        files = new String[count];
+        isDirectory = new boolean[count];
+        lengths = new long[count];
+        lastModified = new long[count];
+    }
+
+    public boolean isLastPage() {
+        return nextCursor==null;
+    }
 
 }
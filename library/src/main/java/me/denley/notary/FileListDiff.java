@@ -0,0 +1,204 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.UiThread;
+import android.support.annotation.WorkerThread;
+import android.support.v7.widget.RecyclerView;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes needed to turn one list of files into another, as a series of insert, remove, move
+ * and change operations that can be reported to a {@link RecyclerView.Adapter}.
+ *
+ * The diff is calculated on a background thread, and then applied to the adapter's list on the
+ * main thread. Files are matched by their case-insensitive path.
+ */
+final class FileListDiff {
+
+    private static final int INSERT = 0;
+    private static final int REMOVE = 1;
+    private static final int MOVE = 2;
+    private static final int CHANGE = 3;
+
+    private final List<File> result;
+
+    /** Operations, as triples of type, position, and either the file index in the result or the target position. */
+    private final int[] operations;
+    private final int operationCount;
+
+    private FileListDiff(@NonNull List<File> result, @NonNull int[] operations, int operationCount) {
+        this.result = result;
+        this.operations = operations;
+        this.operationCount = operationCount;
+    }
+
+    /**
+     * @param current The list as it is now. Not modified.
+     * @param updated The list as it should be. Files must not be equal to one another.
+     */
+    @WorkerThread
+    @NonNull static FileListDiff calculate(@NonNull List<File> current, @NonNull List<File> updated) {
+        final IntArray operations = new IntArray();
+
+        final Set<File> updatedKeys = new HashSet<>(updated);
+
+        // The list after each operation so far is the updated list up to the current position,
+        // followed by the files of the current list that haven't been placed yet, in their
+        // original order. Those are marked in a Fenwick tree, so the position of one can be
+        // found by counting how many before it haven't been placed either.
+        final PositionTree remaining = new PositionTree(current.size());
+        final Map<File, ArrayDeque<Integer>> remainingIndices = new HashMap<>();
+
+        for (int i = current.size() - 1; i >= 0; i--) {
+            if(!updatedKeys.contains(current.get(i))) {
+                operations.add(REMOVE, i, 0);
+            }
+        }
+        for (int i = 0; i < current.size(); i++) {
+            final File file = current.get(i);
+            if(updatedKeys.contains(file)) {
+                remaining.add(i, 1);
+                ArrayDeque<Integer> indices = remainingIndices.get(file);
+                if(indices==null) {
+                    indices = new ArrayDeque<>(1);
+                    remainingIndices.put(file, indices);
+                }
+                indices.add(i);
+            }
+        }
+
+        int next = 0;
+        for (int i = 0; i < updated.size(); i++) {
+            final File file = updated.get(i);
+
+            // The first file that hasn't been placed is at this position
+            while(next < current.size() && !remaining.contains(next)) {
+                next++;
+            }
+
+            final ArrayDeque<Integer> indices = remainingIndices.get(file);
+            if(indices==null || indices.isEmpty()) {
+                operations.add(INSERT, i, i);
+                continue;
+            }
+
+            // The first of any duplicates is the one that is used, as it comes first in the list
+            final int index = indices.poll();
+            if(index!=next) {
+                operations.add(MOVE, i + remaining.countBefore(index), i);
+            }
+            if(!hasSameContents(current.get(index), file)) {
+                operations.add(CHANGE, i, i);
+            }
+            remaining.add(index, -1);
+        }
+
+        // Left over duplicates of files that are in the updated list
+        for (int i = updated.size() + remaining.countBefore(current.size()) - 1; i >= updated.size(); i--) {
+            operations.add(REMOVE, i, 0);
+        }
+
+        return new FileListDiff(new ArrayList<>(updated), operations.values, operations.size);
+    }
+
+    /**
+     * Applies the changes to the list, which must still be in the state that the diff was calculated from,
+     * and notifies the adapter of each one.
+     */
+    @UiThread
+    void applyTo(@NonNull List<File> files, @NonNull RecyclerView.Adapter adapter) {
+        for (int i = 0; i < operationCount; i += 3) {
+            final int position = operations[i + 1];
+            final int argument = operations[i + 2];
+
+            switch(operations[i]) {
+                case INSERT:
+                    files.add(position, result.get(argument));
+                    adapter.notifyItemInserted(position);
+                    break;
+                case REMOVE:
+                    files.remove(position);
+                    adapter.notifyItemRemoved(position);
+                    break;
+                case MOVE:
+                    files.add(argument, files.remove(position));
+                    adapter.notifyItemMoved(position, argument);
+                    break;
+                case CHANGE:
+                    adapter.notifyItemChanged(position);
+                    break;
+            }
+        }
+
+        // Unchanged and moved files are replaced with their updated instances
+        for (int i = 0; i < result.size(); i++) {
+            if(files.get(i)!=result.get(i)) {
+                files.set(i, result.get(i));
+            }
+        }
+    }
+
+    static boolean hasSameContents(@NonNull File a, @NonNull File b) {
+        return a.getClass()==b.getClass() && a.hasSameMetadata(b);
+    }
+
+
+    /**
+     * A Fenwick tree counting the files of the original list that haven't been placed yet.
+     */
+    private static final class PositionTree {
+        private final int[] tree;
+        private final boolean[] present;
+
+        PositionTree(int size) {
+            tree = new int[size + 1];
+            present = new boolean[size];
+        }
+
+        void add(int index, int delta) {
+            present[index] = delta > 0;
+            for (int i = index + 1; i < tree.length; i += i & -i) {
+                tree[i] += delta;
+            }
+        }
+
+        boolean contains(int index) {
+            return present[index];
+        }
+
+        /**
+         * @return The number of files before the given index that haven't been placed yet.
+         */
+        int countBefore(int index) {
+            int count = 0;
+            for (int i = index; i > 0; i -= i & -i) {
+                count += tree[i];
+            }
+            return count;
+        }
+    }
+
+    private static final class IntArray {
+        int[] values = new int[48];
+        int size = 0;
+
+        void add(int type, int position, int argument) {
+            if(size + 3 > values.length) {
+                final int[] grown = new int[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = type;
+            values[size++] = position;
+            values[size++] = argument;
+        }
+    }
+
+}
@@ -0,0 +1,107 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.android.gms.wearable.DataMap;
+
+/**
+ * A request for one page of a remote directory listing.
+ *
+ * Files are listed in order of name. Each page starts after the name given as its cursor, so
+ * files that are added or removed between pages don't shift the pages that follow.
+ */
+final class FileListRequest {
+
+    static final int DEFAULT_PAGE_SIZE = 256;
+
+    /** Requests the whole listing in a single page. */
+    static final int UNLIMITED_PAGE_SIZE = 0;
+
+    /** Used as the generation when the requester doesn't have an earlier listing. */
+    static final long NO_GENERATION = -1;
+
+    private static final int VERSION = 1;
+
+    private static final String KEY_VERSION = "listRequestVersion";
+    private static final String KEY_DIRECTORY = "directory";
+    private static final String KEY_CURSOR = "cursor";
+    private static final String KEY_PAGE_SIZE = "pageSize";
+    private static final String KEY_EPOCH = "epoch";
+    private static final String KEY_GENERATION = "generation";
+    private static final String KEY_REQUEST_ID = "requestId";
+
+    /** The requested directory, or null for the default directory. */
+    @Nullable final String directory;
+
+    /** The name of the last file in the previous page, or null for the first page. */
+    @Nullable final String cursor;
+
+    final int pageSize;
+
+    /** The epoch of the requester's earlier listing. Only meaningful with a generation. */
+    final long epoch;
+
+    /**
+     * The generation of the requester's earlier listing, or {@link #NO_GENERATION}.
+     * Given a generation, the response only needs to contain the changes made since then.
+     */
+    final long sinceGeneration;
+
+    /** Echoed in the response, so that it can be matched to this request. */
+    final long requestId;
+
+    FileListRequest(@Nullable final String directory, @Nullable final String cursor, final int pageSize) {
+        this(directory, cursor, pageSize, 0, NO_GENERATION, 0);
+    }
+
+    FileListRequest(@Nullable final String directory, @Nullable final String cursor, final int pageSize,
+                    final long epoch, final long sinceGeneration, final long requestId) {
+        this.directory = directory;
+        this.cursor = cursor;
+        this.pageSize = pageSize;
+        this.epoch = epoch;
+        this.sinceGeneration = sinceGeneration;
+        this.requestId = requestId;
+    }
+
+    @NonNull byte[] toByteArray() {
+        final DataMap map = new DataMap();
+        map.putInt(KEY_VERSION, VERSION);
+        if(directory!=null) {
+            map.putString(KEY_DIRECTORY, directory);
+        }
+        if(cursor!=null) {
+            map.putString(KEY_CURSOR, cursor);
+        }
+        map.putInt(KEY_PAGE_SIZE, pageSize);
+        map.putLong(KEY_REQUEST_ID, requestId);
+        if(sinceGeneration!=NO_GENERATION) {
+            map.putLong(KEY_EPOCH, epoch);
+            map.putLong(KEY_GENERATION, sinceGeneration);
+        }
+        return map.toByteArray();
+    }
+
+    @NonNull static FileListRequest fromByteArray(@NonNull final byte[] data) {
+        if(data.length==0) {
+            return new FileListRequest(null, null, UNLIMITED_PAGE_SIZE);
+        }
+
+        DataMap map = null;
+        try {
+            map = DataMap.fromByteArray(data);
+        } catch (RuntimeException e) {
+            // Not a DataMap
+        }
+
+        if(map==null || !map.containsKey(KEY_VERSION)) {
+            // Sent by an older version, as the bare directory path
+            return new FileListRequest(new String(data), null, UNLIMITED_PAGE_SIZE);
+        }
+
+        return new FileListRequest(map.getString(KEY_DIRECTORY), map.getString(KEY_CURSOR), map.getInt(KEY_PAGE_SIZE),
+                map.getLong(KEY_EPOCH), map.getLong(KEY_GENERATION, NO_GENERATION), map.getLong(KEY_REQUEST_ID));
+    }
+
+}
@@ -0,0 +1,100 @@
+package me.denley.notary;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+/**
+ * The type, size, modification time and permissions of a file, read together.
+ *
+ * From Lollipop, everything is read with a single {@code stat} call, and permissions are worked
+ * out from the mode bits. An {@code access} call is only made when the answer depends on the
+ * process's supplementary groups. On older versions, each property is read separately.
+ */
+final class FileMetadata {
+
+    static final FileMetadata MISSING = new FileMetadata(false, false, false, false, 0, 0);
+
+    final boolean exists;
+    final boolean isDirectory;
+    final boolean canRead;
+    final boolean canWrite;
+    final long length;
+
+    /** The modification time in milliseconds, to the second. */
+    final long lastModified;
+
+    FileMetadata(final boolean exists, final boolean isDirectory, final boolean canRead, final boolean canWrite,
+                 final long length, final long lastModified) {
+        this.exists = exists;
+        this.isDirectory = isDirectory;
+        this.canRead = canRead;
+        this.canWrite = canWrite;
+        this.length = length;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @return The metadata of a file in a remote listing. Remote permissions aren't listed.
+     */
+    @NonNull static FileMetadata listed(final boolean isDirectory, final long length, final long lastModified) {
+        return new FileMetadata(true, isDirectory, false, false, length, lastModified);
+    }
+
+    @NonNull static FileMetadata stat(@NonNull final java.io.File file) {
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            return statLollipop(file.getPath());
+        }
+
+        final long lastModified = file.lastModified();
+        if(lastModified==0 && !file.exists()) {
+            return MISSING;
+        }
+        return new FileMetadata(true, file.isDirectory(), file.canRead(), file.canWrite(), file.length(), lastModified / 1000 * 1000);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @NonNull private static FileMetadata statLollipop(@NonNull final String path) {
+        final StructStat stat;
+        try {
+            stat = Os.stat(path);
+        } catch (ErrnoException e) {
+            return MISSING;
+        }
+
+        final boolean isDirectory = OsConstants.S_ISDIR(stat.st_mode);
+        return new FileMetadata(true, isDirectory,
+                isPermitted(path, stat, OsConstants.S_IRUSR, OsConstants.S_IRGRP, OsConstants.S_IROTH, OsConstants.R_OK),
+                isPermitted(path, stat, OsConstants.S_IWUSR, OsConstants.S_IWGRP, OsConstants.S_IWOTH, OsConstants.W_OK),
+                isDirectory ? 0 : stat.st_size,
+                stat.st_mtime * 1000);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static boolean isPermitted(@NonNull final String path, @NonNull final StructStat stat,
+                                       final int ownerBit, final int groupBit, final int otherBit, final int accessMode) {
+        if(stat.st_uid==Os.getuid()) {
+            return (stat.st_mode & ownerBit)!=0;
+        } else if(stat.st_gid==Os.getgid()) {
+            return (stat.st_mode & groupBit)!=0;
+        }
+
+        final boolean groupPermitted = (stat.st_mode & groupBit)!=0;
+        final boolean otherPermitted = (stat.st_mode & otherBit)!=0;
+        if(groupPermitted==otherPermitted) {
+            return otherPermitted;
+        }
+
+        // Depends on whether the process is in the file's group
+        try {
+            return Os.access(path, accessMode);
+        } catch (ErrnoException e) {
+            return false;
+        }
+    }
+
+}
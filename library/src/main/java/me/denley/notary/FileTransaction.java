@@ -1,9 +1,6 @@
 package me.denley.notary;
 
 import android.content.Context;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
-import android.os.Environment;
 import android.support.annotation.IntDef;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -17,6 +14,9 @@ import com.google.android.gms.wearable.PutDataRequest;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.UUID;
 
 public class FileTransaction {
@@ -27,42 +27,174 @@ public class FileTransaction {
 
 
     private static final String PATH_PREFIX_TRANSACTION = "/notary_transaction_";
+    private static final String PATH_PREFIX_STREAM = "/notary_stream_";
+    private static final String PATH_PREFIX_DELTA = "/notary_delta_";
+
+    private static final String PARTIAL_FILE_PREFIX = ".notary_";
+    private static final String PARTIAL_FILE_SUFFIX = ".part";
 
     public static String normalizePath(@NonNull final Context context, @Nullable final String path) {
         if(path==null) {
             return null;
         } else if(path.startsWith(EXTERNAL_STORAGE_DIRECTORY)) {
-            return Environment.getExternalStorageDirectory().getAbsolutePath() + path.substring(1);
+            return PathResolver.getExternalStorageDirectory() + path.substring(1);
         } else if(path.startsWith(APP_PRIVATE_DIRECTORY)) {
-            return context.getFilesDir().getAbsolutePath() + path.substring(1);
+            return PathResolver.getAppPrivateDirectory(context) + path.substring(1);
         } else if(path.startsWith(DEFAULT_DIRECTORY)) {
-            return getDefaultDirectory(context) + path.substring(1);
+            return PathResolver.getDefaultDirectory(context) + path.substring(1);
         }
 
         return path;
     }
 
     public static String getDefaultDirectory(@NonNull final Context context) {
-        final String encodedPath = getDefaultDirectoryEncoded(context);
-        if(encodedPath.startsWith(DEFAULT_DIRECTORY)) {
-            throw new IllegalArgumentException("Default directory references itself recursively.");
-        }
-        return normalizePath(context, encodedPath);
+        return PathResolver.getDefaultDirectory(context);
     }
 
     public static String getDefaultDirectoryEncoded(@NonNull final Context context) {
-        try {
-            final ApplicationInfo info = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
-            return info.metaData.getString("default_path");
-        } catch(Exception e) {
-            throw new RuntimeException(e);
-        }
+        return PathResolver.getDefaultDirectoryEncoded(context);
     }
 
     public static boolean isFileTransactionItem(DataItem item) {
         return item.getUri().getPath().startsWith(PATH_PREFIX_TRANSACTION);
     }
 
+    /**
+     * Combines the copies of a transaction written by each node into a single view of its state.
+     *
+     * Each node writes its own DataItem for a transaction. The per-file state set by the source node
+     * (such as the file contents, and whether the file was deleted) is taken from the source's item,
+     * and the state set by the destination node (such as whether the file was saved) is taken from
+     * the destination's item, so neither node overwrites the other's progress.
+     *
+     * @param items The DataItems at a transaction's path, from any number of nodes.
+     * @return The merged transaction, or null if none of the items contain any data.
+     */
+    @Nullable static FileTransaction fromDataItems(@NonNull Iterable<DataItem> items) {
+        FileTransaction merged = null;
+        int failureStatus = STATUS_IN_PROGRESS;
+        int changedFromIndex = Integer.MAX_VALUE;
+
+        for(DataItem item:items) {
+            if(item.getData()==null || item.getData().length==0) {
+                continue;
+            }
+
+            final FileTransaction transaction = new FileTransaction(item);
+            if(merged==null) {
+                merged = transaction;
+            }
+            merged.mergeFrom(transaction, item.getUri().getHost());
+
+            if(transaction.isFailed()) {
+                failureStatus = transaction.status;
+            }
+            changedFromIndex = Math.min(changedFromIndex, transaction.changedFromIndex);
+        }
+
+        if(merged!=null) {
+            merged.status = failureStatus;
+            merged.changedFromIndex = changedFromIndex;
+            merged.updateCompletion();
+        }
+        return merged;
+    }
+
+    /**
+     * Groups the given DataItems by transaction, and merges each group.
+     *
+     * @see #fromDataItems(Iterable)
+     */
+    @NonNull static List<FileTransaction> fromAllDataItems(@NonNull Iterable<DataItem> items) {
+        final Map<String, List<DataItem>> itemsByPath = new LinkedHashMap<>();
+        for(DataItem item:items) {
+            if(isFileTransactionItem(item)) {
+                final String path = item.getUri().getPath();
+                List<DataItem> group = itemsByPath.get(path);
+                if(group==null) {
+                    group = new ArrayList<>();
+                    itemsByPath.put(path, group);
+                }
+                group.add(item);
+            }
+        }
+
+        final List<FileTransaction> transactions = new ArrayList<>();
+        for(List<DataItem> group:itemsByPath.values()) {
+            final FileTransaction transaction = fromDataItems(group);
+            if(transaction!=null) {
+                transactions.add(transaction);
+            }
+        }
+        return transactions;
+    }
+
+    static boolean isStreamChannelPath(@NonNull String channelPath) {
+        return channelPath.startsWith(PATH_PREFIX_STREAM);
+    }
+
+    /**
+     * @return The DataApi path of the transaction that a stream channel was opened for.
+     */
+    @NonNull static String getDataApiPathForStream(@NonNull String channelPath) {
+        return PATH_PREFIX_TRANSACTION + getStreamPathSegments(channelPath)[0];
+    }
+
+    /**
+     * @return The index of the source file that a stream channel was opened for.
+     */
+    static int getSourceIndexForStream(@NonNull String channelPath) {
+        return Integer.parseInt(getStreamPathSegments(channelPath)[1]);
+    }
+
+    /**
+     * @return The byte offset into the source file that a stream channel should start from.
+     */
+    static long getOffsetForStream(@NonNull String channelPath) {
+        return Long.parseLong(getStreamPathSegments(channelPath)[2]);
+    }
+
+    private static String[] getStreamPathSegments(@NonNull String channelPath) {
+        final String[] segments = channelPath.substring(PATH_PREFIX_STREAM.length()).split("/");
+        if(segments.length!=3) {
+            throw new IllegalArgumentException("Malformed stream path: "+channelPath);
+        }
+        return segments;
+    }
+
+    static boolean isDeltaChannelPath(@NonNull String channelPath) {
+        return channelPath.startsWith(PATH_PREFIX_DELTA);
+    }
+
+    /**
+     * @return The DataApi path of the transaction that a delta channel was opened for.
+     */
+    @NonNull static String getDataApiPathForDelta(@NonNull String channelPath) {
+        return PATH_PREFIX_TRANSACTION + getDeltaPathSegments(channelPath)[0];
+    }
+
+    /**
+     * @return The index of the source file that a delta channel was opened for.
+     */
+    static int getSourceIndexForDelta(@NonNull String channelPath) {
+        return Integer.parseInt(getDeltaPathSegments(channelPath)[1]);
+    }
+
+    private static String[] getDeltaPathSegments(@NonNull String channelPath) {
+        final String[] segments = channelPath.substring(PATH_PREFIX_DELTA.length()).split("/");
+        if(segments.length!=2) {
+            throw new IllegalArgumentException("Malformed delta path: "+channelPath);
+        }
+        return segments;
+    }
+
+    /**
+     * @return Whether the given file name belongs to a partially received file.
+     */
+    static boolean isPartialFileName(@NonNull String fileName) {
+        return fileName.startsWith(PARTIAL_FILE_PREFIX) && fileName.endsWith(PARTIAL_FILE_SUFFIX);
+    }
+
     private static String createTransactionId() {
         return new UUID(System.currentTimeMillis(), (long)(Math.random()*1000000000000l)).toString();
     }
@@ -84,6 +216,7 @@ public class FileTransaction {
     public static final int STATUS_FAILED_UNKNOWN = 7;
     public static final int STATUS_FAILED_NO_READ_PERMISSION = 8;
     public static final int STATUS_FAILED_NO_DELETE_PERMISSION = 9;
+    public static final int STATUS_FAILED_INSUFFICIENT_SPACE = 10;
 
     @IntDef({
             STATUS_IN_PROGRESS,
@@ -94,46 +227,94 @@ public class FileTransaction {
             STATUS_FAILED_FILE_ALREADY_EXISTS,
             STATUS_FAILED_UNKNOWN,
             STATUS_FAILED_NO_READ_PERMISSION,
-            STATUS_FAILED_NO_DELETE_PERMISSION
+            STATUS_FAILED_NO_DELETE_PERMISSION,
+            STATUS_FAILED_INSUFFICIENT_SPACE
     })
     public @interface FileTransactionStatus {}
 
 
+    private static final int FLAG_COPIED = 1;
+    private static final int FLAG_DELETED = 1 << 1;
+    /** The file is ready to be pulled by the destination over a channel, instead of being sent as an asset. */
+    private static final int FLAG_STREAMED = 1 << 2;
+    /** The source has published the file's size and hash, without its contents. */
+    private static final int FLAG_OFFERED = 1 << 3;
+    /** The destination has asked for the contents of an offered file. */
+    private static final int FLAG_REQUESTED = 1 << 4;
+    /** A streamed save was cut off, and should be resumed when the peer reconnects. */
+    private static final int FLAG_INTERRUPTED = 1 << 5;
+    /** The file's contents are sent as a zlib stream, which the destination inflates. */
+    private static final int FLAG_COMPRESSED = 1 << 6;
+
+    /** Per-file flags that only the source node may change. */
+    private static final int SOURCE_FLAGS = FLAG_DELETED | FLAG_STREAMED | FLAG_OFFERED | FLAG_COMPRESSED;
+    /** Per-file flags that only the destination node may change. */
+    private static final int DESTINATION_FLAGS = FLAG_COPIED | FLAG_REQUESTED | FLAG_INTERRUPTED;
+
+
     @NonNull private final ArrayList<String> sourceFiles;
     @NonNull public final String sourceNode;
 
     @NonNull private final String destinationDirectory;
     @NonNull public final String destinationNode;
 
-    private int actionableIndex = 0;
-    private boolean shouldCopy = false;
-    private boolean hasCopied = false;
-    private boolean shouldDelete = false;
-    private boolean hasDeleted = false;
+    private final boolean shouldCopy;
+    private final boolean shouldDelete;
+
+    /** Whether a file that already exists at the destination is updated to match the source, instead of failing the transaction. */
+    private final boolean shouldUpdateExisting;
 
     final boolean isDeleteOnlyTransaction;
 
+    /** The number of files that may be in flight at once. */
+    private final int pipelineDepth;
+
     @FileTransactionStatus int status = STATUS_IN_PROGRESS;
 
-    private final String transactionId;
+    /** The first file whose state changed in the update that produced this copy of the transaction. */
+    private int changedFromIndex = 0;
 
-    @Nullable Asset fileAsset;
+    private final String transactionId;
 
-    FileTransaction(@NonNull String sourceFile, @NonNull String sourceNode, @NonNull String destinationDirectory, @NonNull String destinationNode, boolean deleteSource) {
-        this(asArrayList(sourceFile), sourceNode, destinationDirectory, destinationNode, deleteSource);
+    private final byte[] fileStates;
+    private final long[] sourceSizes;
+    private final String[] sourceHashes;
+    /** The number of bytes of each file that the destination has durably written. */
+    private final long[] committedOffsets;
+    /** The number of times in a row that the destination's save of each file was cut off without making progress. */
+    private final byte[] saveAttempts;
+    private final Asset[] fileAssets;
+
+    /** Resolved source files, valid for the {@link PathResolver} generation they were resolved in. */
+    private File[] resolvedSourceFiles;
+    private File resolvedDestinationDirectory;
+    private int resolvedGeneration = -1;
+
+    FileTransaction(@NonNull String sourceFile, @NonNull String sourceNode, @NonNull String destinationDirectory, @NonNull String destinationNode,
+                    boolean deleteSource, boolean updateExisting) {
+        this(asArrayList(sourceFile), sourceNode, destinationDirectory, destinationNode, deleteSource, updateExisting);
     }
 
-    FileTransaction(@NonNull ArrayList<String> sourceFiles, @NonNull String sourceNode, @NonNull String destinationDirectory, @NonNull String destinationNode, boolean deleteSource) {
+    FileTransaction(@NonNull ArrayList<String> sourceFiles, @NonNull String sourceNode, @NonNull String destinationDirectory, @NonNull String destinationNode,
+                    boolean deleteSource, boolean updateExisting) {
         this.sourceFiles = sourceFiles;
         this.sourceNode = sourceNode;
         this.destinationDirectory = destinationDirectory;
         this.destinationNode = destinationNode;
         shouldCopy = true;
         shouldDelete = deleteSource;
+        shouldUpdateExisting = updateExisting;
         status = STATUS_IN_PROGRESS;
         transactionId = createTransactionId();
-        fileAsset = null;
         isDeleteOnlyTransaction = false;
+        pipelineDepth = Notary.getPipelineDepth();
+
+        fileStates = new byte[sourceFiles.size()];
+        sourceSizes = new long[sourceFiles.size()];
+        sourceHashes = new String[sourceFiles.size()];
+        committedOffsets = new long[sourceFiles.size()];
+        saveAttempts = new byte[sourceFiles.size()];
+        fileAssets = new Asset[sourceFiles.size()];
     }
 
     FileTransaction(@NonNull String observerDirectory, @NonNull String observerNode, @NonNull String fileToDelete, @NonNull String node) {
@@ -147,10 +328,18 @@ public class FileTransaction {
         destinationNode = observerNode;
         shouldCopy = false;
         shouldDelete = true;
+        shouldUpdateExisting = false;
         status = STATUS_IN_PROGRESS;
         transactionId = createTransactionId();
-        fileAsset = null;
         isDeleteOnlyTransaction = true;
+        pipelineDepth = Notary.getPipelineDepth();
+
+        fileStates = new byte[filesToDelete.size()];
+        sourceSizes = new long[filesToDelete.size()];
+        sourceHashes = new String[filesToDelete.size()];
+        committedOffsets = new long[filesToDelete.size()];
+        saveAttempts = new byte[filesToDelete.size()];
+        fileAssets = new Asset[filesToDelete.size()];
     }
 
     FileTransaction(@NonNull DataItem item) {
@@ -163,15 +352,41 @@ public class FileTransaction {
         sourceNode = map.getString("sourceNode");
         destinationDirectory = map.getString("destinationDirectory");
         destinationNode = map.getString("destinationNode");
-        actionableIndex = map.getInt("actionableIndex");
         shouldCopy = map.getBoolean("shouldCopy");
-        hasCopied = map.getBoolean("hasCopied");
         shouldDelete = map.getBoolean("shouldDelete");
-        hasDeleted = map.getBoolean("hasDeleted");
+        shouldUpdateExisting = map.getBoolean("shouldUpdateExisting");
         status = map.getInt("status");
         transactionId = map.getString("transactionId");
-        fileAsset = map.getAsset("fileAsset");
         isDeleteOnlyTransaction = map.getBoolean("isDeleteOnlyTransaction");
+        pipelineDepth = Math.max(1, map.getInt("pipelineDepth"));
+        changedFromIndex = map.getInt("changedFromIndex");
+
+        final int count = sourceFiles.size();
+        fileStates = orEmpty(map.getByteArray("fileStates"), count);
+        sourceSizes = orEmpty(map.getLongArray("sourceSizes"), count);
+        committedOffsets = orEmpty(map.getLongArray("committedOffsets"), count);
+        saveAttempts = orEmpty(map.getByteArray("saveAttempts"), count);
+
+        sourceHashes = new String[count];
+        final String[] hashes = map.getStringArray("sourceHashes");
+        if(hashes!=null && hashes.length==count) {
+            for (int i = 0; i < count; i++) {
+                sourceHashes[i] = hashes[i].isEmpty() ? null : hashes[i];
+            }
+        }
+
+        fileAssets = new Asset[count];
+        for (int i = 0; i < count; i++) {
+            fileAssets[i] = map.getAsset("fileAsset_" + i);
+        }
+    }
+
+    private static byte[] orEmpty(@Nullable byte[] array, int length) {
+        return array!=null && array.length==length ? array : new byte[length];
+    }
+
+    private static long[] orEmpty(@Nullable long[] array, int length) {
+        return array!=null && array.length==length ? array : new long[length];
     }
 
     PutDataRequest asPutDataRequest() {
@@ -182,80 +397,285 @@ public class FileTransaction {
         map.putString("sourceNode", sourceNode);
         map.putString("destinationDirectory", destinationDirectory);
         map.putString("destinationNode", destinationNode);
-        map.putInt("actionableIndex", actionableIndex);
         map.putBoolean("shouldCopy", shouldCopy);
-        map.putBoolean("hasCopied", hasCopied);
         map.putBoolean("shouldDelete", shouldDelete);
-        map.putBoolean("hasDeleted", hasDeleted);
+        map.putBoolean("shouldUpdateExisting", shouldUpdateExisting);
         map.putInt("status", status);
         map.putString("transactionId", transactionId);
-
-        map.putAsset("fileAsset", fileAsset);
         map.putBoolean("isDeleteOnlyTransaction", isDeleteOnlyTransaction);
+        map.putInt("pipelineDepth", pipelineDepth);
+        map.putInt("changedFromIndex", changedFromIndex);
+
+        map.putByteArray("fileStates", fileStates);
+        map.putLongArray("sourceSizes", sourceSizes);
+        map.putLongArray("committedOffsets", committedOffsets);
+        map.putByteArray("saveAttempts", saveAttempts);
+
+        final String[] hashes = new String[sourceHashes.length];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = sourceHashes[i]==null ? "" : sourceHashes[i];
+        }
+        map.putStringArray("sourceHashes", hashes);
+
+        for (int i = 0; i < fileAssets.length; i++) {
+            // Once a file is saved, its asset no longer needs to be kept in the data layer
+            if(fileAssets[i]!=null && !hasFlag(i, FLAG_COPIED)) {
+                map.putAsset("fileAsset_" + i, fileAssets[i]);
+            }
+        }
 
         return request.asPutDataRequest();
     }
 
+    private void mergeFrom(@NonNull FileTransaction other, @Nullable String writerNode) {
+        if(other==this || other.fileStates.length!=fileStates.length) {
+            return;
+        }
+
+        if(sourceNode.equals(writerNode)) {
+            for (int i = 0; i < fileStates.length; i++) {
+                fileStates[i] = (byte) ((fileStates[i] & ~SOURCE_FLAGS) | (other.fileStates[i] & SOURCE_FLAGS));
+                sourceSizes[i] = other.sourceSizes[i];
+                sourceHashes[i] = other.sourceHashes[i];
+                fileAssets[i] = other.fileAssets[i];
+            }
+        }
+
+        if(destinationNode.equals(writerNode)) {
+            for (int i = 0; i < fileStates.length; i++) {
+                fileStates[i] = (byte) ((fileStates[i] & ~DESTINATION_FLAGS) | (other.fileStates[i] & DESTINATION_FLAGS));
+                committedOffsets[i] = other.committedOffsets[i];
+                saveAttempts[i] = other.saveAttempts[i];
+            }
+        }
+    }
+
+    /**
+     * Applies changes made by the given node that have not yet reached the data layer.
+     */
+    void mergeUnpublished(@NonNull FileTransaction unpublished, @NonNull String writerNode) {
+        mergeFrom(unpublished, writerNode);
+        if(unpublished.isFailed()) {
+            status = unpublished.status;
+        }
+        changedFromIndex = Math.min(changedFromIndex, unpublished.changedFromIndex);
+        updateCompletion();
+    }
+
     @FileTransactionStatus public int getStatus() {
         return status;
     }
 
-    void setHasCopied() {
+    private boolean isFailed() {
+        return status!=STATUS_IN_PROGRESS && status!=STATUS_COMPLETE;
+    }
+
+    private boolean hasFlag(int index, int flag) {
+        return (fileStates[index] & flag) != 0;
+    }
+
+    private void setFlag(int index, int flag) {
+        fileStates[index] |= flag;
+    }
+
+    private void clearFlag(int index, int flag) {
+        fileStates[index] &= ~flag;
+    }
+
+    void setHasCopied(int index) {
         if(!shouldCopy) {
             throw new IllegalStateException("File was copied, but should not have been");
         }
-        hasCopied = true;
-        fileAsset = null;
+        setFlag(index, FLAG_COPIED);
+        clearFlag(index, FLAG_INTERRUPTED);
+        committedOffsets[index] = 0;
+        saveAttempts[index] = 0;
+        fileAssets[index] = null;
 
-        if(!shouldDelete) {
-            setCurrentIndexComplete();
-        }
+        updateCompletion();
     }
 
-    void setHasDeleted() {
+    void setHasDeleted(int index) {
         if(!shouldDelete) {
             throw new IllegalStateException("File was deleted, but should not have been");
-        } else if (shouldCopy && !hasCopied) {
+        } else if (shouldCopy && !hasFlag(index, FLAG_COPIED)) {
             throw new IllegalStateException("File was deleted before being copied");
         }
-        hasDeleted = true;
+        setFlag(index, FLAG_DELETED);
 
-        setCurrentIndexComplete();
+        updateCompletion();
     }
 
-    private void setCurrentIndexComplete() {
-        actionableIndex++;
-        if(actionableIndex < sourceFiles.size()) {
-            hasCopied = false;
-            hasDeleted = false;
-            fileAsset = null;
-        } else {
+    private void updateCompletion() {
+        if(status==STATUS_IN_PROGRESS && getActionableIndex()==sourceFiles.size()) {
             updateStatus(STATUS_COMPLETE);
         }
     }
 
+    void setSourceMetadata(int index, long size, @NonNull String hash) {
+        sourceSizes[index] = size;
+        sourceHashes[index] = hash;
+    }
+
+    boolean hasSourceMetadata(int index) {
+        return sourceHashes[index]!=null;
+    }
+
+    @Nullable String getSourceHash(int index) {
+        return sourceHashes[index];
+    }
+
+    long getSourceSize(int index) {
+        return sourceSizes[index];
+    }
+
+    @Nullable Asset getFileAsset(int index) {
+        return fileAssets[index];
+    }
+
+    void setFileAsset(int index, @NonNull Asset asset) {
+        fileAssets[index] = asset;
+    }
+
+    /**
+     * Marks a file as ready to be pulled by the destination over a channel.
+     */
+    void setStreamed(int index) {
+        setFlag(index, FLAG_STREAMED);
+    }
+
+    boolean isStreamed(int index) {
+        return hasFlag(index, FLAG_STREAMED);
+    }
+
+    void setCompressed(int index) {
+        setFlag(index, FLAG_COMPRESSED);
+    }
+
+    boolean isCompressed(int index) {
+        return hasFlag(index, FLAG_COMPRESSED);
+    }
+
+    void setContentOffered(int index) {
+        setFlag(index, FLAG_OFFERED);
+    }
+
+    void setContentRequested(int index) {
+        setFlag(index, FLAG_REQUESTED);
+    }
+
+    boolean isContentRequested(int index) {
+        return hasFlag(index, FLAG_REQUESTED);
+    }
+
+    /**
+     * @return Whether the contents of a file are available to the destination.
+     */
+    boolean hasContent(int index) {
+        return fileAssets[index]!=null || hasFlag(index, FLAG_STREAMED);
+    }
+
+    /**
+     * Records that a streamed save was cut off after the given number of bytes were durably written.
+     *
+     * @return The number of attempts in a row that were cut off without writing anything new.
+     */
+    int setInterrupted(int index, long committedOffset) {
+        if(committedOffset > committedOffsets[index]) {
+            saveAttempts[index] = 0;
+        }
+        saveAttempts[index] = (byte) Math.min(Byte.MAX_VALUE, saveAttempts[index] + 1);
+        committedOffsets[index] = committedOffset;
+        setFlag(index, FLAG_INTERRUPTED);
+        return saveAttempts[index];
+    }
+
+    void clearInterrupted(int index) {
+        clearFlag(index, FLAG_INTERRUPTED);
+    }
+
+    boolean isInterrupted(int index) {
+        return hasFlag(index, FLAG_INTERRUPTED);
+    }
+
+    long getCommittedOffset(int index) {
+        return committedOffsets[index];
+    }
+
+    boolean isIndexComplete(int index) {
+        if(shouldCopy && !hasFlag(index, FLAG_COPIED)) {
+            return false;
+        }
+        return !shouldDelete || hasFlag(index, FLAG_DELETED);
+    }
+
+    /**
+     * @return The index of the first file that has not been completely actioned,
+     *         or the number of files if all of them have been.
+     */
     int getActionableIndex() {
-        return actionableIndex;
+        for (int i = 0; i < fileStates.length; i++) {
+            if(!isIndexComplete(i)) {
+                return i;
+            }
+        }
+        return fileStates.length;
+    }
+
+    int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    int getChangedFromIndex() {
+        return Math.min(changedFromIndex, sourceFiles.size());
+    }
+
+    /**
+     * Records that files from the given index onwards may have changed. Updates that are
+     * coalesced before being published keep the lowest index of any of them.
+     */
+    void setChangedFromIndex(int index) {
+        changedFromIndex = index;
     }
 
-    boolean pendingCopy() {
-        return actionableIndex<sourceFiles.size() && shouldCopy && !hasCopied && fileAsset==null;
+    void coalesceChangedFromIndex(@NonNull FileTransaction previous) {
+        changedFromIndex = Math.min(changedFromIndex, previous.changedFromIndex);
     }
 
-    boolean pendingSave() {
-        return actionableIndex<sourceFiles.size() && shouldCopy && !hasCopied && fileAsset!=null;
+    /**
+     * @return The index after the last file that may currently be actioned.
+     */
+    int getPipelineEnd() {
+        return Math.min(sourceFiles.size(), getActionableIndex() + pipelineDepth);
     }
 
-    boolean pendingDelete() {
-        return actionableIndex<sourceFiles.size() && (!shouldCopy || hasCopied) && shouldDelete && !hasDeleted;
+    boolean pendingCopy(int index) {
+        return shouldCopy && !hasFlag(index, FLAG_COPIED) && !hasContent(index)
+                && (!hasFlag(index, FLAG_OFFERED) || hasFlag(index, FLAG_REQUESTED));
     }
 
-    boolean hasCopiedAndSaved() {
-        return shouldCopy & hasCopied;
+    boolean pendingSave(int index) {
+        return shouldCopy && !hasFlag(index, FLAG_COPIED)
+                && (hasContent(index) || (hasFlag(index, FLAG_OFFERED) && !hasFlag(index, FLAG_REQUESTED)));
     }
 
-    boolean hasDeleted() {
-        return hasDeleted;
+    boolean pendingDelete(int index) {
+        return (!shouldCopy || hasFlag(index, FLAG_COPIED)) && shouldDelete && !hasFlag(index, FLAG_DELETED);
+    }
+
+    /**
+     * @return Whether files that already exist at the destination are updated to match the source.
+     */
+    boolean shouldUpdateExisting() {
+        return shouldUpdateExisting;
+    }
+
+    boolean hasCopiedAndSaved(int index) {
+        return shouldCopy && hasFlag(index, FLAG_COPIED);
+    }
+
+    boolean hasDeleted(int index) {
+        return hasFlag(index, FLAG_DELETED);
     }
 
     private void updateStatus(@FileTransactionStatus int newStatus) {
@@ -266,12 +686,24 @@ public class FileTransaction {
         return PATH_PREFIX_TRANSACTION + transactionId;
     }
 
+    @NonNull String getStreamChannelPath(int index, long offset) {
+        return PATH_PREFIX_STREAM + transactionId + "/" + index + "/" + offset;
+    }
+
+    @NonNull String getDeltaChannelPath(int index) {
+        return PATH_PREFIX_DELTA + transactionId + "/" + index;
+    }
+
+    @NonNull String getPartialFileName(int index) {
+        return PARTIAL_FILE_PREFIX + transactionId + "_" + index + PARTIAL_FILE_SUFFIX;
+    }
+
     @NonNull public String getSourceFileName(int index) {
         return new File(sourceFiles.get(index)).getName();
     }
 
     @NonNull public String getActionableSourceFileName() {
-        return new File(sourceFiles.get(actionableIndex)).getName();
+        return getSourceFileName(getActionableIndex());
     }
 
     public int getSourceFileCount() {
@@ -279,14 +711,35 @@ public class FileTransaction {
     }
 
     @NonNull public File getSourceFile(@NonNull final Context context, int index) {
-        return new File(normalizePath(context, sourceFiles.get(index)));
+        final File[] resolved = getResolvedFiles();
+        if(resolved[index]==null) {
+            resolved[index] = new File(normalizePath(context, sourceFiles.get(index)));
+        }
+        return resolved[index];
     }
 
     @NonNull public File getActionableSourceFile(@NonNull final Context context) {
-        return new File(normalizePath(context, sourceFiles.get(actionableIndex)));
+        return getSourceFile(context, getActionableIndex());
     }
 
     @NonNull public File getDestinationDirectoryFile(@NonNull Context context) {
-        return new File(normalizePath(context, destinationDirectory));
+        getResolvedFiles();
+        if(resolvedDestinationDirectory==null) {
+            resolvedDestinationDirectory = new File(normalizePath(context, destinationDirectory));
+        }
+        return resolvedDestinationDirectory;
+    }
+
+    /**
+     * @return The cache of resolved source files, cleared if the roots have been resolved again since it was filled.
+     */
+    private synchronized File[] getResolvedFiles() {
+        final int generation = PathResolver.getGeneration();
+        if(resolvedSourceFiles==null || resolvedGeneration!=generation) {
+            resolvedSourceFiles = new File[sourceFiles.size()];
+            resolvedDestinationDirectory = null;
+            resolvedGeneration = generation;
+        }
+        return resolvedSourceFiles;
     }
 }
@@ -0,0 +1,221 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+/**
+ * A list of files that can find the position of a file without scanning the list.
+ *
+ * Positions are kept in a map from each file, which is equal to any other file with the same
+ * case-insensitive path. Each position is stored with the number of insertions and removals that
+ * had been made when it was recorded, and a lookup brings it up to date by replaying the ones made
+ * since. Changes at the end of the list don't move anything, so they aren't recorded. Once about
+ * the square root of the list's size have been recorded, every position is brought up to date in
+ * one pass and the record is cleared, so neither a lookup nor a change in the middle of the list
+ * ever rebuilds the whole map by itself.
+ *
+ * Not thread-safe, like the list it replaces.
+ */
+final class IndexedFileList extends AbstractList<File> implements RandomAccess {
+
+    private static final int MIN_RECORDED_EDITS = 32;
+
+    private final List<File> files = new ArrayList<>();
+
+    /** The first position of each file, by file. */
+    private final Map<File, Position> positions = new HashMap<>();
+
+    /**
+     * Insertions and removals since the positions were last all brought up to date. Each is
+     * stored as the position it was made at plus one, negated for a removal.
+     */
+    private int[] edits = new int[MIN_RECORDED_EDITS];
+    private int editCount = 0;
+
+    @Override public File get(int location) {
+        return files.get(location);
+    }
+
+    @Override public int size() {
+        return files.size();
+    }
+
+    @Override public File set(int location, File file) {
+        final File previous = files.get(location);
+        if(previous.equals(file)) {
+            return files.set(location, file);
+        }
+
+        forget(previous, location);
+        files.set(location, file);
+        remember(file, location);
+        return previous;
+    }
+
+    @Override public void add(int location, File file) {
+        if(location < 0 || location > files.size()) {
+            throw new IndexOutOfBoundsException("Invalid index " + location + ", size is " + files.size());
+        }
+
+        files.add(location, file);
+        if(location < files.size() - 1) {
+            // Everything after it has moved up by one
+            record(location + 1);
+        }
+        remember(file, location);
+        reindexIfNeeded();
+        modCount++;
+    }
+
+    @Override public File remove(int location) {
+        final File removed = files.get(location);
+        forget(removed, location);
+        files.remove(location);
+        if(location < files.size()) {
+            // Everything after it has moved down by one
+            record(-(location + 1));
+        }
+        reindexIfNeeded();
+        modCount++;
+        return removed;
+    }
+
+    @Override public void clear() {
+        files.clear();
+        positions.clear();
+        editCount = 0;
+        modCount++;
+    }
+
+    @Override public int indexOf(Object object) {
+        if(!(object instanceof File)) {
+            return -1;
+        }
+
+        final Position position = positions.get(object);
+        return position==null ? -1 : resolve(position);
+    }
+
+    @Override public boolean contains(Object object) {
+        return indexOf(object)!=-1;
+    }
+
+    @Override public boolean remove(Object object) {
+        final int position = indexOf(object);
+        if(position==-1) {
+            return false;
+        }
+        remove(position);
+        return true;
+    }
+
+    /**
+     * Counts a file that has just been placed at the given location.
+     */
+    private void remember(@NonNull File file, int location) {
+        final Position position = positions.get(file);
+        if(position==null) {
+            positions.put(file, new Position(location, editCount));
+        } else {
+            // Only the first of equal files is indexed
+            if(location <= resolve(position)) {
+                position.update(location, editCount);
+            }
+            position.count++;
+        }
+    }
+
+    /**
+     * Stops counting a file that is about to be replaced or removed from the given location.
+     */
+    private void forget(@NonNull File file, int location) {
+        final Position position = positions.get(file);
+        if(position.count==1) {
+            positions.remove(file);
+            return;
+        }
+
+        position.count--;
+        if(resolve(position)==location) {
+            // The first of several equal files, so the next one takes its place
+            for (int i = location + 1; i < files.size(); i++) {
+                if(files.get(i).equals(file)) {
+                    position.update(i, editCount);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The current location of the indexed file, which is also saved back to its position.
+     */
+    private int resolve(@NonNull Position position) {
+        int location = position.location;
+        for (int i = position.edits; i < editCount; i++) {
+            final int edit = edits[i];
+            if(edit > 0 && edit - 1 <= location) {
+                location++;
+            } else if(edit < 0 && -edit - 1 < location) {
+                location--;
+            }
+        }
+        position.update(location, editCount);
+        return location;
+    }
+
+    private void record(int edit) {
+        if(editCount==edits.length) {
+            final int[] grown = new int[edits.length * 2];
+            System.arraycopy(edits, 0, grown, 0, editCount);
+            edits = grown;
+        }
+        edits[editCount++] = edit;
+    }
+
+    /**
+     * Brings every position up to date in one pass over the list, and clears the record of changes,
+     * once replaying the record would take about as long as a pass spread over the changes made.
+     */
+    private void reindexIfNeeded() {
+        if(editCount < Math.max(MIN_RECORDED_EDITS, (int) Math.sqrt(files.size()))) {
+            return;
+        }
+
+        for(Position position:positions.values()) {
+            position.edits = -1;
+        }
+        for (int i = 0; i < files.size(); i++) {
+            final Position position = positions.get(files.get(i));
+            if(position.edits==-1) {
+                position.update(i, 0);
+            }
+        }
+        editCount = 0;
+    }
+
+
+    private static final class Position {
+        int location;
+        /** The number of recorded changes that the location already accounts for. */
+        int edits;
+        /** The number of equal files in the list. */
+        int count = 1;
+
+        Position(int location, int edits) {
+            update(location, edits);
+        }
+
+        void update(int location, int edits) {
+            this.location = location;
+            this.edits = edits;
+        }
+    }
+
+}
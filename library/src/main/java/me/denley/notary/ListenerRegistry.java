@@ -0,0 +1,69 @@
+package me.denley.notary;
+
+import android.support.annotation.NonNull;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+/**
+ * Thread-safe index of registered {@link FileListener}s, keyed by node and path.
+ *
+ * Paths are matched case-insensitively, so a lookup finds exactly the listeners that
+ * a case-insensitive comparison against every registration would have found.
+ */
+final class ListenerRegistry {
+
+    private final ConcurrentHashMap<String, Set<FileListener>> listenersByKey = new ConcurrentHashMap<>();
+
+    /** The key that each listener is registered under, so that it can be unregistered. */
+    private final ConcurrentHashMap<FileListener, String> keysByListener = new ConcurrentHashMap<>();
+
+    /**
+     * Registers a listener, replacing any previous registration of the same listener.
+     */
+    synchronized void register(@NonNull final FileListener listener, @NonNull final String fileOrDirectory, @NonNull final String node) {
+        unregister(listener);
+
+        final String key = createKey(node, fileOrDirectory);
+        Set<FileListener> listeners = listenersByKey.get(key);
+        if(listeners==null) {
+            listeners = new CopyOnWriteArraySet<>();
+            listenersByKey.put(key, listeners);
+        }
+        listeners.add(listener);
+        keysByListener.put(listener, key);
+    }
+
+    synchronized void unregister(@NonNull final FileListener listener) {
+        final String key = keysByListener.remove(listener);
+        if(key!=null) {
+            final Set<FileListener> listeners = listenersByKey.get(key);
+            if(listeners!=null) {
+                listeners.remove(listener);
+                if(listeners.isEmpty()) {
+                    listenersByKey.remove(key);
+                }
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return keysByListener.isEmpty();
+    }
+
+    /**
+     * @return The listeners registered for exactly the given file or directory on the given node.
+     */
+    @NonNull Set<FileListener> get(@NonNull final String node, @NonNull final String fileOrDirectory) {
+        final Set<FileListener> listeners = listenersByKey.get(createKey(node, fileOrDirectory));
+        return listeners==null ? Collections.<FileListener>emptySet() : listeners;
+    }
+
+    @NonNull private static String createKey(@NonNull final String node, @NonNull final String path) {
+        return node + '\n' + path.toLowerCase(Locale.US);
+    }
+
+}
@@ -1,29 +1,19 @@
 package me.denley.notary;
 
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
 import android.support.annotation.NonNull;
-import android.text.format.DateUtils;
 import android.util.Log;
-import android.util.Pair;
 
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataItemBuffer;
-import com.google.android.gms.wearable.MessageApi;
-import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.Wearable;
 
-import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.ObjectInputStream;
 import java.util.ArrayList;
-import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.Set;
 
 @SuppressWarnings("unused")
 public class Notary {
@@ -33,20 +23,47 @@ public class Notary {
     public static final String PATH_DISK_CAPACITY = "/disk_capacity";
 
 
-    private static Map<FileListener, Pair<String, String>> LISTENERS = new LinkedHashMap<>();
+    public static final int DEFAULT_PIPELINE_DEPTH = 4;
+
+
+    private static final ListenerRegistry LISTENERS = new ListenerRegistry();
+
+    private static volatile int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
 
     public static void requestFileTransfer(@NonNull final Context context, @NonNull final String sourceFile, @NonNull final String sourceNode,
                                            @NonNull final String destinationDirectory, @NonNull final String destinationNode,
                                            final boolean deleteSource) {
-        final FileTransaction transaction = new FileTransaction(sourceFile, sourceNode, destinationDirectory, destinationNode, deleteSource);
+        requestFileTransfer(context, sourceFile, sourceNode, destinationDirectory, destinationNode, deleteSource, false);
+    }
+
+    /**
+     * @param updateExisting Whether a different file that already exists at the destination is updated to match the
+     *                       source, instead of failing the transfer. Large files are updated by sending only the parts
+     *                       that differ.
+     */
+    public static void requestFileTransfer(@NonNull final Context context, @NonNull final String sourceFile, @NonNull final String sourceNode,
+                                           @NonNull final String destinationDirectory, @NonNull final String destinationNode,
+                                           final boolean deleteSource, final boolean updateExisting) {
+        final FileTransaction transaction = new FileTransaction(sourceFile, sourceNode, destinationDirectory, destinationNode, deleteSource, updateExisting);
         putTransactionAsync(context, transaction);
     }
 
     public static void requestFileTransfer(@NonNull final Context context, @NonNull final ArrayList<String> sourceFiles, @NonNull final String sourceNode,
                                             @NonNull final String destinationDirectory, @NonNull final String destinationNode,
                                             final boolean deleteSource) {
+        requestFileTransfer(context, sourceFiles, sourceNode, destinationDirectory, destinationNode, deleteSource, false);
+    }
+
+    /**
+     * @param updateExisting Whether different files that already exist at the destination are updated to match the
+     *                       source, instead of failing the transfer. Large files are updated by sending only the parts
+     *                       that differ.
+     */
+    public static void requestFileTransfer(@NonNull final Context context, @NonNull final ArrayList<String> sourceFiles, @NonNull final String sourceNode,
+                                            @NonNull final String destinationDirectory, @NonNull final String destinationNode,
+                                            final boolean deleteSource, final boolean updateExisting) {
         if(!sourceFiles.isEmpty()) {
-            final FileTransaction transaction = new FileTransaction(sourceFiles, sourceNode, destinationDirectory, destinationNode, deleteSource);
+            final FileTransaction transaction = new FileTransaction(sourceFiles, sourceNode, destinationDirectory, destinationNode, deleteSource, updateExisting);
             putTransactionAsync(context, transaction);
         }
     }
@@ -66,149 +83,242 @@ public class Notary {
     }
 
     private static void putTransactionAsync(@NonNull final Context context, @NonNull final FileTransaction transaction) {
-        new Thread() {
+        NotaryExecutor.execute(new Runnable() {
             public void run() {
                 putTransaction(context, transaction);
             }
-        }.start();
+        });
     }
 
+    /**
+     * Publishes a new transaction. A transfer that is known not to fit on the destination is published
+     * as already failed, so that it is reported to listeners without any of its files being sent.
+     */
     private static void putTransaction(@NonNull final Context context, @NonNull final FileTransaction transaction) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API)
-                .build();
-
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            Wearable.DataApi.putDataItem(apiClient, transaction.asPutDataRequest());
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
+            try {
+                if(!DiskCapacity.hasSpaceFor(context, apiClient, transaction)) {
+                    transaction.status = FileTransaction.STATUS_FAILED_INSUFFICIENT_SPACE;
+                }
+                Wearable.DataApi.putDataItem(apiClient, transaction.asPutDataRequest().setUrgent()).await();
+            } finally {
+                SharedApiClient.release();
+            }
         }
     }
 
     public static void registerFileListener(@NonNull final FileListener listener, @NonNull String fileOrDirectory, @NonNull String node) {
-        final Pair<String, String> target = new Pair<>(fileOrDirectory, node);
-        LISTENERS.put(listener, target);
+        LISTENERS.register(listener, fileOrDirectory, node);
     }
 
     public static void unregisterFileListener(@NonNull final FileListener listener) {
-        LISTENERS.remove(listener);
+        LISTENERS.unregister(listener);
     }
 
-    static void notifyListeners(@NonNull Context context, @NonNull final FileTransaction transaction) {
-        for(Map.Entry<FileListener, Pair<String, String>> entry:LISTENERS.entrySet()) {
-            final Pair<String, String> target = entry.getValue();
-            checkAndTriggerListener(context, target.first, target.second, entry.getKey(), transaction);
+    /**
+     * Sets the number of files in a multi-file transaction that may be in flight at once.
+     * The source node prepares files this far ahead, and the destination saves them as they arrive.
+     * This only applies to transactions requested after it is set.
+     */
+    public static void setPipelineDepth(final int depth) {
+        if(depth < 1) {
+            throw new IllegalArgumentException("Pipeline depth must be at least 1");
         }
+        pipelineDepth = depth;
     }
 
-    private static void checkAndTriggerListener(@NonNull Context context,
-                                                @NonNull String fileOrDirectory, @NonNull String node,
-                                                @NonNull FileListener listener, @NonNull FileTransaction transaction) {
+    public static int getPipelineDepth() {
+        return pipelineDepth;
+    }
 
-        checkAndTriggerListenerForSource(context, fileOrDirectory, node, listener, transaction);
-        checkAndTriggerListenerForDestination(context, fileOrDirectory, node, listener, transaction);
+    /**
+     * Sets the maximum number of transactions that this node will action at once.
+     * Each transaction is still only ever actioned by one thread at a time.
+     */
+    public static void setMaxConcurrentTransactions(final int count) {
+        TransactionDispatcher.setConcurrency(count);
     }
 
-    private static void checkAndTriggerListenerForSource(@NonNull Context context,
-                                                         @NonNull String fileOrDirectory, @NonNull String node,
-                                                         @NonNull FileListener listener, @NonNull FileTransaction transaction) {
-        if(!node.equals(transaction.sourceNode)) {
-            return;
-        }
+    public static int getMaxConcurrentTransactions() {
+        return TransactionDispatcher.getConcurrency();
+    }
 
-        final int actionableIndex = transaction.getActionableIndex();
+    /**
+     * Sets how long a complete remote directory listing is reused for, instead of being requested again.
+     */
+    public static void setFileListCacheTime(final long millis) {
+        FileListClient.setCacheMillis(millis);
+    }
 
-        if(actionableIndex==0) {
-            for (int i = 0; i < transaction.getSourceFileCount(); i++) {
-                checkAndTriggerSourceForTransactionIndex(context, fileOrDirectory, listener, transaction, i);
-            }
-        } else {
-            checkAndTriggerSourceForTransactionIndex(context, fileOrDirectory, listener, transaction, actionableIndex - 1);
-            if(actionableIndex < transaction.getSourceFileCount()) {
-                checkAndTriggerSourceForTransactionIndex(context, fileOrDirectory, listener, transaction, actionableIndex);
-            }
-        }
+    public static long getFileListCacheTime() {
+        return FileListClient.getCacheMillis();
     }
 
-    private static void checkAndTriggerSourceForTransactionIndex(@NonNull Context context,
-                                                                 @NonNull String fileOrDirectory,
-                                                                 @NonNull FileListener listener,
-                                                                 @NonNull FileTransaction transaction,
-                                                                 int index) {
+    /**
+     * Sets whether files are compressed in transit. When enabled, which it is by default, files that
+     * compress well are deflated by the source and inflated by the destination before they are saved.
+     * Already compressed formats, like images, media and archives, are always sent as-is.
+     *
+     * This affects transfers from this device only.
+     */
+    public static void setCompressionEnabled(final boolean enabled) {
+        TransferCompression.setEnabled(enabled);
+    }
 
-        final String sourcePath = transaction.getSourceFile(context, index).getAbsolutePath();
-        final String sourceDirectory = transaction.getSourceFile(context, index).getParent();
+    public static boolean isCompressionEnabled() {
+        return TransferCompression.isEnabled();
+    }
 
-        if (fileOrDirectory.equalsIgnoreCase(sourcePath) || fileOrDirectory.equalsIgnoreCase(sourceDirectory)) {
-            listener.onSourceFileStatusChanged(transaction, index);
-        }
+    /**
+     * Configures the pool of background threads used for transfers and other blocking work.
+     *
+     * @param threadCount The maximum number of tasks to run concurrently.
+     * @param queueLimit The maximum number of tasks to queue before callers are made to wait.
+     */
+    public static void configureBackgroundExecutor(final int threadCount, final int queueLimit) {
+        NotaryExecutor.configure(threadCount, queueLimit);
+    }
+
+    /**
+     * @return The number of background tasks waiting to be run.
+     */
+    public static int getQueuedTaskCount() {
+        return NotaryExecutor.getQueueSize();
+    }
+
+    /**
+     * @return The number of times the shared wearable API client has connected in this process.
+     */
+    public static int getApiConnectCount() {
+        return SharedApiClient.getConnectCount();
     }
 
-    private static void checkAndTriggerListenerForDestination(@NonNull Context context,
-                                                              @NonNull String fileOrDirectory, @NonNull String node,
-                                                              @NonNull FileListener listener, @NonNull FileTransaction transaction) {
-        if(!node.equals(transaction.destinationNode)) {
+    /**
+     * @return The number of failed connection attempts made by the shared wearable API client.
+     */
+    public static int getApiFailedConnectCount() {
+        return SharedApiClient.getFailedConnectCount();
+    }
+
+    /**
+     * @return The average time taken to connect the shared wearable API client, in milliseconds.
+     */
+    public static long getApiAverageConnectMillis() {
+        return SharedApiClient.getAverageConnectMillis();
+    }
+
+    /**
+     * @return The longest time taken to connect the shared wearable API client, in milliseconds.
+     */
+    public static long getApiMaxConnectMillis() {
+        return SharedApiClient.getMaxConnectMillis();
+    }
+
+    static void notifyListeners(@NonNull Context context, @NonNull final FileTransaction transaction) {
+        if(LISTENERS.isEmpty()) {
             return;
         }
 
-        final File destinationDirectory = transaction.getDestinationDirectoryFile(context);
-        final int actionableIndex = transaction.getActionableIndex();
+        final int start = getNotifyStartIndex(transaction);
+        final int end = getNotifyEndIndex(transaction);
+        notifySourceListeners(context, transaction, start, end);
+        notifyDestinationListeners(context, transaction, start, end);
+    }
 
-        if(actionableIndex==0) {
-            for (int i = 0; i < transaction.getSourceFileCount(); i++) {
-                checkAndTriggerDestinationForTransactionIndex(context, fileOrDirectory, destinationDirectory, listener, transaction, i);
+    /**
+     * Notifies listeners on the source node that observe a changed source file, or its directory.
+     */
+    private static void notifySourceListeners(@NonNull Context context, @NonNull FileTransaction transaction, int start, int end) {
+        for (int i = start; i < end; i++) {
+            final File sourceFile = transaction.getSourceFile(context, i);
+            final Set<FileListener> fileListeners = LISTENERS.get(transaction.sourceNode, sourceFile.getAbsolutePath());
+            final Set<FileListener> directoryListeners = sourceFile.getParent()==null ? null
+                    : LISTENERS.get(transaction.sourceNode, sourceFile.getParent());
+
+            for(FileListener listener:fileListeners) {
+                listener.onSourceFileStatusChanged(transaction, i);
             }
-        } else {
-            checkAndTriggerDestinationForTransactionIndex(context, fileOrDirectory, destinationDirectory, listener, transaction, actionableIndex - 1);
-            if(actionableIndex<transaction.getSourceFileCount()) {
-                checkAndTriggerDestinationForTransactionIndex(context, fileOrDirectory, destinationDirectory, listener, transaction, actionableIndex);
+            if(directoryListeners!=null) {
+                for(FileListener listener:directoryListeners) {
+                    listener.onSourceFileStatusChanged(transaction, i);
+                }
             }
         }
     }
 
-    private static void checkAndTriggerDestinationForTransactionIndex(@NonNull Context context,
-                                                                      @NonNull String fileOrDirectory,
-                                                                      @NonNull File destinationDirectory,
-                                                                      @NonNull FileListener listener,
-                                                                      @NonNull FileTransaction transaction,
-                                                                      int index) {
+    /**
+     * Notifies listeners on the destination node that observe a changed destination file, or the destination directory.
+     */
+    private static void notifyDestinationListeners(@NonNull Context context, @NonNull FileTransaction transaction, int start, int end) {
+        final File destinationDirectory = transaction.getDestinationDirectoryFile(context);
+        final Set<FileListener> directoryListeners = LISTENERS.get(transaction.destinationNode, destinationDirectory.getAbsolutePath());
 
-        final String sourceFileName = transaction.getSourceFileName(index);
-        final String destinationFileName = new File(destinationDirectory, sourceFileName).getAbsolutePath();
+        for (int i = start; i < end; i++) {
+            final String destinationFileName = new File(destinationDirectory, transaction.getSourceFileName(i)).getAbsolutePath();
+            final Set<FileListener> fileListeners = LISTENERS.get(transaction.destinationNode, destinationFileName);
 
-        if(fileOrDirectory.equalsIgnoreCase(destinationDirectory.getAbsolutePath()) || fileOrDirectory.equalsIgnoreCase(destinationFileName)) {
-            if(transaction.getStatus()==FileTransaction.STATUS_COMPLETE || transaction.getActionableIndex()>index) {
-                listener.onDeleteTransactionSuccess(transaction, index);
-            } else {
-                listener.onDestinationFileStatusChanged(transaction, index);
+            for(FileListener listener:directoryListeners) {
+                triggerDestinationListener(listener, transaction, i);
+            }
+            for(FileListener listener:fileListeners) {
+                triggerDestinationListener(listener, transaction, i);
             }
         }
     }
 
+    private static void triggerDestinationListener(@NonNull FileListener listener, @NonNull FileTransaction transaction, int index) {
+        if(transaction.getStatus()==FileTransaction.STATUS_COMPLETE || transaction.isIndexComplete(index)) {
+            listener.onDeleteTransactionSuccess(transaction, index);
+        } else {
+            listener.onDestinationFileStatusChanged(transaction, index);
+        }
+    }
+
+    /**
+     * Files are actioned in a window of the transaction's pipeline depth, starting at its first incomplete file.
+     * Any file that changed in a single step is within one window's distance of the current one. Several steps
+     * may be coalesced into one update, in which case the update records the first file that it changed.
+     * Before any file is complete, every file is reported so that they can all be shown as pending.
+     */
+    private static int getNotifyStartIndex(@NonNull FileTransaction transaction) {
+        final int actionableIndex = transaction.getActionableIndex();
+        return actionableIndex==0 ? 0 : Math.max(0,
+                Math.min(transaction.getChangedFromIndex(), actionableIndex - transaction.getPipelineDepth()));
+    }
+
+    private static int getNotifyEndIndex(@NonNull FileTransaction transaction) {
+        final int actionableIndex = transaction.getActionableIndex();
+        return actionableIndex==0 ? transaction.getSourceFileCount()
+                : Math.min(transaction.getSourceFileCount(), actionableIndex + transaction.getPipelineDepth());
+    }
+
     static List<PendingFile> getTransactionsForDirectory(@NonNull final Context context, @NonNull final String directory) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API).build();
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
+            final DataItemBuffer items;
+            final Node node;
+            try {
+                items = Wearable.DataApi.getDataItems(apiClient).await();
+                node = Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+            } finally {
+                SharedApiClient.release();
+            }
 
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            final DataItemBuffer items = Wearable.DataApi.getDataItems(apiClient).await();
-            final Node node = NotaryWearableListenerService.getLocalNode(context);
+            final List<FileTransaction> transactions = FileTransaction.fromAllDataItems(items);
+            items.release();
 
             final List<PendingFile> files = new ArrayList<>();
-            for(DataItem item:items) {
-                if(item.getData().length>0 && FileTransaction.isFileTransactionItem(item)) {
-                    final FileTransaction transaction = new FileTransaction(item);
+            for(FileTransaction transaction:transactions) {
+                for (int i = 0; i < transaction.getSourceFileCount(); i++) {
+                    final String sourceDirectory = transaction.getSourceFile(context, i).getParent();
 
-                    for (int i = 0; i < transaction.getSourceFileCount(); i++) {
-                        final String sourceDirectory = transaction.getSourceFile(context, i).getParent();
-
-                        if(node!=null && node.getId().equals(transaction.sourceNode) && directory.equalsIgnoreCase(sourceDirectory)) {
-                            files.add(new PendingFile(directory, transaction, i));
-                        }
+                    if(node!=null && node.getId().equals(transaction.sourceNode) && directory.equalsIgnoreCase(sourceDirectory)) {
+                        files.add(new PendingFile(directory, transaction, i));
                     }
                 }
             }
 
-            items.release();
             return files;
         } else {
             return new ArrayList<>();
@@ -223,71 +333,118 @@ public class Notary {
         void failure(ConnectionResult result);
     }
 
+    public interface FileListPageCallback {
+        /**
+         * Called with each page of the listing, in order. The last page is marked by {@link FileListContainer#isLastPage()}.
+         * A page without a cursor is the first page, and starts the listing over if pages have already been delivered.
+         */
+        void onPage(FileListContainer page);
+        void failure(ConnectionResult result);
+    }
+
     public static void requestFileList(@NonNull final Context context, @NonNull final FileListCallback callback) {
         requestFileList(context, FileTransaction.DEFAULT_DIRECTORY, callback);
     }
 
     public static void requestFileList(@NonNull final Context context, @NonNull final String directory, @NonNull final FileListCallback callback) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API).build();
+        requestFileListPages(context, directory, FileListRequest.DEFAULT_PAGE_SIZE, new PageCollector(callback));
+    }
+
+    public static void requestFileList(@NonNull final Context context, @NonNull final String node, @NonNull final String directory, @NonNull final FileListCallback callback) {
+        requestFileListPages(context, node, directory, FileListRequest.DEFAULT_PAGE_SIZE, new PageCollector(callback));
+    }
 
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
+    /**
+     * Requests a listing of a directory on the first connected node, delivered a page at a time.
+     * Concurrent requests for the same directory share a single request, and a complete listing is reused
+     * for {@link #getFileListCacheTime()}. The callback's failure method is called if the node doesn't respond.
+     *
+     * @param pageSize The maximum number of files in each page.
+     */
+    public static void requestFileListPages(@NonNull final Context context, @NonNull final String directory, final int pageSize,
+                                            @NonNull final FileListPageCallback callback) {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
             final List<Node> nodes = Wearable.NodeApi.getConnectedNodes(apiClient).await().getNodes();
             if(nodes.size()==0) {
                 Log.e("WearApi", "Not connected to any nodes");
+                SharedApiClient.release();
                 callback.failure(null);
             } else {
-                requestFileList(apiClient, nodes.get(0).getId(), directory, callback);
+                FileListClient.request(apiClient, nodes.get(0).getId(), directory, pageSize, callback);
             }
         } else {
             Log.e("WearApi", "Failed to connect to API");
-            callback.failure(result);
+            callback.failure(SharedApiClient.getLastConnectionResult());
         }
     }
 
-    public static void requestFileList(@NonNull final Context context, @NonNull final String node, @NonNull final String directory, @NonNull final FileListCallback callback) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API).build();
-
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            requestFileList(apiClient, node, directory, callback);
+    /**
+     * Requests a listing of a directory on the given node, delivered a page at a time.
+     * Concurrent requests for the same directory share a single request, and a complete listing is reused
+     * for {@link #getFileListCacheTime()}. The callback's failure method is called if the node doesn't respond.
+     *
+     * @param pageSize The maximum number of files in each page.
+     */
+    public static void requestFileListPages(@NonNull final Context context, @NonNull final String node, @NonNull final String directory,
+                                            final int pageSize, @NonNull final FileListPageCallback callback) {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
+            FileListClient.request(apiClient, node, directory, pageSize, callback);
         } else {
             Log.e("WearApi", "Failed to connect to API");
-            callback.failure(result);
+            callback.failure(SharedApiClient.getLastConnectionResult());
         }
     }
 
-    private static void requestFileList(@NonNull final GoogleApiClient apiClient, @NonNull final String node, @NonNull final String directory, @NonNull final FileListCallback callback) {
-        final Handler handler = new Handler(Looper.getMainLooper());
-        final Runnable requestRunnable = new Runnable() {
-            @Override public void run() {
-                Wearable.MessageApi.sendMessage(apiClient, node, REQUEST_LIST_FILES, directory.getBytes());
-                handler.postDelayed(this, 10 * DateUtils.SECOND_IN_MILLIS);
+    /**
+     * Collects every page of a listing into a single result.
+     */
+    private static final class PageCollector implements FileListPageCallback {
+        @NonNull private final FileListCallback callback;
+        @NonNull private final List<FileListContainer> pages = new ArrayList<>();
+
+        PageCollector(@NonNull FileListCallback callback) {
+            this.callback = callback;
+        }
+
+        @Override public void onPage(FileListContainer page) {
+            if(page.outcome!=FileListContainer.SUCCESS) {
+                callback.success(page);
+                return;
             }
-        };
-
-        Wearable.MessageApi.addListener(apiClient, new MessageApi.MessageListener() {
-            @Override public void onMessageReceived(MessageEvent messageEvent) {
-                if(messageEvent.getPath().equals(RESPONSE_LIST_FILES) && messageEvent.getSourceNodeId().equals(node)) {
-                    try {
-                        final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(messageEvent.getData()));
-                        final FileListContainer container = (FileListContainer)in.readObject();
-                        if((directory.equalsIgnoreCase(container.directory))) {
-                            handler.removeCallbacks(requestRunnable);
-                            callback.success(container);
-                            Wearable.MessageApi.removeListener(apiClient, this);
-                            apiClient.disconnect();
-                        }
-                    } catch (Exception e) {
-                        Log.e("WearApi", "Error parsing file list response", e);
-                    }
+
+            if(page.cursor==null) {
+                pages.clear();
+            }
+            pages.add(page);
+
+            if(page.isLastPage()) {
+                int count = 0;
+                for(FileListContainer collected:pages) {
+                    count += collected.getFileCount();
+                }
+
+                final FileListContainer result = new FileListContainer();
+                result.directory = page.directory;
+                result.setFileCount(count);
+
+                int position = 0;
+                for(FileListContainer collected:pages) {
+                    final int pageCount = collected.getFileCount();
+                    System.arraycopy(collected.files, 0, result.files, position, pageCount);
+                    System.arraycopy(collected.isDirectory, 0, result.isDirectory, position, pageCount);
+                    System.arraycopy(collected.lengths, 0, result.lengths, position, pageCount);
+                    System.arraycopy(collected.lastModified, 0, result.lastModified, position, pageCount);
+                    position += pageCount;
                 }
+                callback.success(result);
             }
-        });
+        }
 
-        handler.post(requestRunnable);
+        @Override public void failure(ConnectionResult result) {
+            callback.failure(result);
+        }
     }
 
 }
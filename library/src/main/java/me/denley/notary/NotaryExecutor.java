@@ -0,0 +1,227 @@
+package me.denley.notary;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of background threads used for all of Notary's blocking work.
+ *
+ * The number of queued tasks is limited. Once the limit is reached, callers on ordinary
+ * background threads block until there is room in the queue, and callers already running on
+ * one of the pool's threads run the task inline instead (so that the pool can't deadlock on
+ * itself). The main thread can't be blocked, so its tasks are rejected instead, and handled by
+ * the {@link OverflowPolicy} they were submitted with.
+ */
+final class NotaryExecutor {
+
+    private static final String TAG = "Notary";
+
+    /** Leaves room for other work while the default number of transactions are being actioned. */
+    static final int DEFAULT_THREAD_COUNT = TransactionDispatcher.DEFAULT_CONCURRENCY + 2;
+    static final int DEFAULT_QUEUE_LIMIT = 64;
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    /** How long a task rejected from the main thread waits before it is submitted again. */
+    static final long RETRY_DELAY_MILLIS = 100;
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * Handles a task that was submitted from the main thread while the queue was full.
+     * Called on the main thread.
+     */
+    interface OverflowPolicy {
+        void onRejected(@NonNull Runnable task);
+    }
+
+    /** Submits the task again after a short delay, so that the queue has a chance to drain. */
+    static final OverflowPolicy RETRY_LATER = new OverflowPolicy() {
+        @Override public void onRejected(@NonNull final Runnable task) {
+            HANDLER.postDelayed(new Runnable() {
+                @Override public void run() {
+                    execute(task, RETRY_LATER);
+                }
+            }, RETRY_DELAY_MILLIS);
+        }
+    };
+
+    /** Drops the task, for work that is repeated anyway. */
+    static final OverflowPolicy DISCARD = new OverflowPolicy() {
+        @Override public void onRejected(@NonNull final Runnable task) {
+            Log.w(TAG, "Background queue is full, discarding task from main thread");
+        }
+    };
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger(1);
+
+    private static ThreadPoolExecutor executor;
+    private static Semaphore queuePermits;
+
+    static {
+        configure(DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_LIMIT);
+    }
+
+    private NotaryExecutor() {}
+
+    /**
+     * Replaces the executor with one using the given limits. Tasks already queued
+     * on the previous executor are still run.
+     */
+    static synchronized void configure(final int threadCount, final int queueLimit) {
+        if(threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be at least 1");
+        } else if(queueLimit < 1) {
+            throw new IllegalArgumentException("Queue limit must be at least 1");
+        }
+
+        final ThreadPoolExecutor previous = executor;
+
+        executor = new ThreadPoolExecutor(threadCount, threadCount,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override public Thread newThread(@NonNull Runnable runnable) {
+                        return new PoolThread(runnable);
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+        queuePermits = new Semaphore(queueLimit);
+
+        if(previous!=null) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Queues a task for execution on a background thread, applying backpressure if the queue is full.
+     * Tasks from the main thread that don't fit are retried once the queue has had time to drain.
+     */
+    static void execute(@NonNull final Runnable task) {
+        execute(task, RETRY_LATER);
+    }
+
+    /**
+     * Queues a task for execution on a background thread, applying backpressure if the queue is full.
+     *
+     * @param overflowPolicy What to do with the task if it is submitted from the main thread while the queue is full.
+     */
+    static void execute(@NonNull final Runnable task, @NonNull final OverflowPolicy overflowPolicy) {
+        final ThreadPoolExecutor executor;
+        final Semaphore permits;
+        synchronized (NotaryExecutor.class) {
+            executor = NotaryExecutor.executor;
+            permits = queuePermits;
+        }
+
+        boolean holdsPermit = permits.tryAcquire();
+
+        if(!holdsPermit) {
+            if(Thread.currentThread() instanceof PoolThread) {
+                task.run();
+                return;
+            } else if(Looper.myLooper()==Looper.getMainLooper()) {
+                overflowPolicy.onRejected(task);
+                return;
+            } else {
+                permits.acquireUninterruptibly();
+                holdsPermit = true;
+            }
+        }
+
+        executor.execute(new QueuedTask(task, holdsPermit ? permits : null));
+    }
+
+    /**
+     * @return The number of tasks waiting for a background thread.
+     */
+    static int getQueueSize() {
+        synchronized (NotaryExecutor.class) {
+            return executor.getQueue().size();
+        }
+    }
+
+
+    /**
+     * Runs tasks on the pool one at a time, in the order they were submitted.
+     */
+    static final class SerialQueue {
+
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running = false;
+
+        private final Runnable drain = new Runnable() {
+            @Override public void run() {
+                while(true) {
+                    final Runnable task;
+                    synchronized (tasks) {
+                        task = tasks.poll();
+                        if(task==null) {
+                            running = false;
+                            return;
+                        }
+                    }
+
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Error running background task", e);
+                    }
+                }
+            }
+        };
+
+        void execute(@NonNull final Runnable task) {
+            synchronized (tasks) {
+                tasks.add(task);
+                if(running) {
+                    return;
+                }
+                running = true;
+            }
+            NotaryExecutor.execute(drain);
+        }
+    }
+
+    private static final class QueuedTask implements Runnable {
+
+        @NonNull private final Runnable task;
+        private final Semaphore permits;
+
+        QueuedTask(@NonNull final Runnable task, final Semaphore permits) {
+            this.task = task;
+            this.permits = permits;
+        }
+
+        @Override public void run() {
+            if(permits!=null) {
+                permits.release();
+            }
+            task.run();
+        }
+    }
+
+    private static final class PoolThread extends Thread {
+
+        PoolThread(@NonNull final Runnable runnable) {
+            super(runnable, "Notary #" + THREAD_NUMBER.getAndIncrement());
+        }
+
+        @Override public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            super.run();
+        }
+    }
+
+}
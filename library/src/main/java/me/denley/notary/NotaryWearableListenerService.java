@@ -1,48 +1,70 @@
 package me.denley.notary;
 
 import android.content.Context;
+import android.content.Intent;
 import android.net.Uri;
+import android.os.ParcelFileDescriptor;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
+import android.text.format.DateUtils;
 import android.util.Log;
 
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.Channel;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItem;
 import com.google.android.gms.wearable.DataItemBuffer;
-import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Node;
-import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 
-import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 public class NotaryWearableListenerService extends WearableListenerService {
 
+    private static final long CHECKPOINT_INTERVAL_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * When this process started writing files, less a margin for file systems that store modification
+     * times to the second. Partial files written since then belong to transfers in this process.
+     */
+    private static final long PROCESS_START_MILLIS = System.currentTimeMillis() - 2 * DateUtils.SECOND_IN_MILLIS;
+
+    /** The number of times in a row that a save may be cut off without progress before the transaction fails. */
+    private static final int MAX_SAVE_ATTEMPTS = 5;
+
+    /** Files at least this large are offered by size and hash first, and only sent if the destination asks for them. */
+    private static final long OFFER_THRESHOLD_BYTES = 64 * 1024;
+
     @WorkerThread
     @Nullable public static Node getLocalNode(final Context context) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API).build();
-
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            return Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
+            try {
+                return Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+            } finally {
+                SharedApiClient.release();
+            }
         } else {
             return null;
         }
@@ -50,299 +72,600 @@ public class NotaryWearableListenerService extends WearableListenerService {
 
     @WorkerThread
     @NonNull public static List<Node> getRemoteNodes(final Context context) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API).build();
-
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            return Wearable.NodeApi.getConnectedNodes(apiClient).await().getNodes();
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
+            try {
+                return Wearable.NodeApi.getConnectedNodes(apiClient).await().getNodes();
+            } finally {
+                SharedApiClient.release();
+            }
         } else {
             return new ArrayList<>();
         }
     }
 
-    @WorkerThread
-    private static void updateDiskCapacity(final Context context) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API).build();
-
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            final java.io.File file = new java.io.File(FileTransaction.getDefaultDirectory(context));
 
-            final PutDataMapRequest request = PutDataMapRequest.create(Notary.PATH_DISK_CAPACITY);
-            final DataMap map = request.getDataMap();
-            map.putLong("total_space", file.getTotalSpace());
-            map.putLong("available_space", file.getUsableSpace());
-            Wearable.DataApi.putDataItem(apiClient, request.asPutDataRequest());
-            apiClient.disconnect();
+    /**
+     * Processes transactions with the application context, so that the work doesn't depend on the
+     * service instance that dispatched it, which may be destroyed before it finishes.
+     */
+    private static final TransactionDispatcher.Handler TRANSACTION_HANDLER = new TransactionDispatcher.Handler() {
+        @Override public void onTransactionChanged(@NonNull final Context context, @NonNull final String dataApiPath,
+                                                   final boolean notify, final boolean resumeInterrupted) {
+            processTransaction(context, dataApiPath, notify, resumeInterrupted);
         }
-    }
+    };
 
+    @Override public void onCreate() {
+        super.onCreate();
 
-    Node localNode;
+        NotaryExecutor.execute(new Runnable() {
+            @Override public void run() {
+                deleteStalePartialFiles();
+            }
+        });
+    }
+
+    /**
+     * Only started by {@link ServiceKeepAlive} while background work is running, which is
+     * dispatched again when the peer reconnects, so the service isn't restarted if it is killed.
+     */
+    @Override public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        return START_NOT_STICKY;
+    }
 
     @Override public void onPeerConnected(Node peer) {
         super.onPeerConnected(peer);
         checkAllItems();
+        DiskCapacity.publishIfChanged(this);
     }
 
     @Override public void onDataChanged(@NonNull final DataEventBuffer dataEvents) {
         super.onDataChanged(dataEvents);
-        localNode = getLocalNode(this);
-
-        boolean diskStateChanged = false;
 
+        final Set<String> transactionPaths = new LinkedHashSet<>();
         for(DataEvent event:dataEvents) {
             final DataItem item = event.getDataItem();
-            if(item.getData()!=null && item.getData().length>0 && localNode !=null && FileTransaction.isFileTransactionItem(item)) {
+            if(DiskCapacity.isCapacityItem(item)) {
+                DiskCapacity.onPeerCapacityChanged(item);
+            } else if(item.getData()!=null && item.getData().length>0 && FileTransaction.isFileTransactionItem(item)) {
+                transactionPaths.add(item.getUri().getPath());
+            }
+        }
+
+        for (String path : transactionPaths) {
+            TransactionDispatcher.dispatch(this, path, true, false, TRANSACTION_HANDLER);
+        }
+    }
 
-                final FileTransaction transaction = new FileTransaction(item);
-                Notary.notifyListeners(this, transaction);
+    /**
+     * Removes partial files left behind by transfers that were interrupted and will not be resumed.
+     *
+     * Transactions can be created or resumed while this runs, after the snapshot of active transfers
+     * is taken, so partial files written since the process started are always kept.
+     */
+    @WorkerThread
+    private void deleteStalePartialFiles() {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(this);
+        if(apiClient==null) {
+            return;
+        }
 
-                if(transaction.status==FileTransaction.STATUS_IN_PROGRESS) {
-                    final boolean actioned = onTransactionDataItemChanged(item);
-                    diskStateChanged = actioned || diskStateChanged;
+        final Set<String> activePartialFiles = new HashSet<>();
+        final Set<File> directories = new HashSet<>();
+        directories.add(new File(FileTransaction.getDefaultDirectory(this)));
+
+        try {
+            final Node node = Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+            final DataItemBuffer items = Wearable.DataApi.getDataItems(apiClient).await();
+            final List<FileTransaction> transactions = FileTransaction.fromAllDataItems(items);
+            items.release();
+
+            for (FileTransaction transaction : transactions) {
+                if(node!=null && node.getId().equals(transaction.destinationNode) && !transaction.isDeleteOnlyTransaction) {
+                    directories.add(transaction.getDestinationDirectoryFile(this));
+                    if(transaction.getStatus()==FileTransaction.STATUS_IN_PROGRESS) {
+                        for (int i = transaction.getActionableIndex(); i < transaction.getPipelineEnd(); i++) {
+                            activePartialFiles.add(transaction.getPartialFileName(i));
+                        }
+                    }
                 }
             }
+        } finally {
+            SharedApiClient.release();
         }
 
-        if(diskStateChanged) {
-            updateDiskCapacity(this);
+        for(File directory:directories) {
+            AtomicFileWriter.deleteStalePartialFiles(directory, activePartialFiles, PROCESS_START_MILLIS);
         }
     }
 
     @WorkerThread
     private void checkAllItems() {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API).build();
+        final GoogleApiClient apiClient = SharedApiClient.acquire(this);
+        if(apiClient!=null) {
+            final Set<String> transactionPaths = new LinkedHashSet<>();
+            try {
+                final DataItemBuffer items = Wearable.DataApi.getDataItems(apiClient).await();
+                for (DataItem item : items) {
+                    if(item.getData().length>0 && FileTransaction.isFileTransactionItem(item)) {
+                        transactionPaths.add(item.getUri().getPath());
+                    }
+                }
+                items.release();
+            } finally {
+                SharedApiClient.release();
+            }
 
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            localNode = Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
-            checkAllItems(apiClient);
-            apiClient.disconnect();
+            // Resuming interrupted transfers should only be done once the peer has (re)connected,
+            // to avoid immediately retrying over a broken link.
+            for (String path : transactionPaths) {
+                TransactionDispatcher.dispatch(this, path, false, true, TRANSACTION_HANDLER);
+            }
         }
     }
 
-    private void checkAllItems(final GoogleApiClient apiClient) {
-        boolean diskStateChanged = false;
+    /**
+     * Called on one of the {@link TransactionDispatcher}'s worker threads. The dispatcher
+     * ensures that a transaction is never processed by more than one thread at a time.
+     *
+     * @param notify Whether to notify registered listeners of the state of the transaction.
+     * @param resumeInterrupted Whether to resume interrupted transfers.
+     */
+    @WorkerThread
+    private static void processTransaction(@NonNull final Context context, @NonNull final String dataApiPath,
+                                           final boolean notify, final boolean resumeInterrupted) {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient==null) {
+            return;
+        }
 
-        final DataItemBuffer items = Wearable.DataApi.getDataItems(apiClient).await();
-        for (DataItem item : items) {
-            if(item.getData().length>0 && localNode !=null && FileTransaction.isFileTransactionItem(item)) {
-                final boolean actioned = onTransactionDataItemChanged(item);
-                diskStateChanged = actioned || diskStateChanged;
+        final boolean actioned;
+        try {
+            final Node localNode = Wearable.NodeApi.getLocalNode(apiClient).await().getNode();
+            if(localNode==null) {
+                return;
             }
+
+            actioned = actionTransaction(context, apiClient, localNode, dataApiPath, notify, resumeInterrupted);
+        } finally {
+            SharedApiClient.release();
         }
-        items.release();
 
-        if(diskStateChanged) {
-            updateDiskCapacity(this);
+        if(actioned) {
+            DiskCapacity.publishIfChanged(context);
         }
     }
 
-    private synchronized boolean onTransactionDataItemChanged(@NonNull final DataItem item) {
-        final FileTransaction transaction = new FileTransaction(item);
-        if(transaction.getStatus()==FileTransaction.STATUS_IN_PROGRESS) {
-            return checkForActionables(transaction);
+    /**
+     * Loads the current state of a transaction from every node's copy of it,
+     * including this node's changes that are still waiting to be published.
+     */
+    @WorkerThread
+    @Nullable static FileTransaction loadTransaction(@NonNull final GoogleApiClient apiClient, @NonNull final String dataApiPath) {
+        final Uri uri = new Uri.Builder()
+                .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                .path(dataApiPath)
+                .build();
+
+        final FileTransaction transaction;
+        final DataItemBuffer items = Wearable.DataApi.getDataItems(apiClient, uri).await();
+        try {
+            transaction = FileTransaction.fromDataItems(items);
+        } finally {
+            items.release();
         }
 
-        return false;
+        if(transaction!=null) {
+            TransactionPublisher.applyUnpublished(transaction);
+        }
+        return transaction;
     }
 
-    private boolean checkForActionables(@NonNull final FileTransaction transaction) {
+    /**
+     * Actions every file in the transaction's pipeline that is waiting on this node,
+     * then publishes the new state of the transaction once.
+     *
+     * The update is only published urgently if the peer has nothing else to do until it arrives,
+     * or if it finishes the transaction. Progress made while the peer is still busy with other
+     * files in the pipeline is left to be coalesced.
+     */
+    private static boolean actionTransaction(@NonNull final Context context, @NonNull final GoogleApiClient apiClient,
+                                             @NonNull final Node localNode, @NonNull final String dataApiPath,
+                                             final boolean notify, final boolean resumeInterrupted) {
+        final FileTransaction transaction = loadTransaction(apiClient, dataApiPath);
+        if(transaction==null) {
+            return false;
+        }
+
+        if(notify) {
+            Notary.notifyListeners(context, transaction);
+        }
+
+        if(transaction.getStatus()!=FileTransaction.STATUS_IN_PROGRESS) {
+            return false;
+        }
+
+        final boolean isSource = localNode.getId().equals(transaction.sourceNode);
+        final boolean isDestination = localNode.getId().equals(transaction.destinationNode);
+        // A node transferring to itself is its own peer, and has just actioned all it can
+        final boolean peerIsSource = !isSource || isDestination;
+        final boolean peerIsDestination = !isDestination || isSource;
+        final boolean peerWasIdle = (isSource && isDestination) || !hasWork(transaction, peerIsSource, peerIsDestination);
         boolean actioned = false;
 
-        if (transaction.pendingCopy()) {
-            if(localNode.getId().equals(transaction.sourceNode)) {
-                loadSourceFile(transaction);
+        final int start = transaction.getActionableIndex();
+        final int end = transaction.getPipelineEnd();
+        for (int i = start; i < end && transaction.getStatus()==FileTransaction.STATUS_IN_PROGRESS; i++) {
+            if (isSource && transaction.pendingCopy(i)) {
+                loadSourceFile(context, transaction, i);
                 actioned = true;
-            }
-        } else if (transaction.pendingSave()) {
-            if(localNode.getId().equals(transaction.destinationNode)) {
-                saveDestinationFile(transaction);
+            } else if (isDestination && transaction.pendingSave(i)) {
+                if(transaction.isInterrupted(i)) {
+                    if(!resumeInterrupted) {
+                        continue;
+                    }
+                    transaction.clearInterrupted(i);
+                }
+                saveDestinationFile(context, transaction, i);
                 actioned = true;
-            }
-        } else if (transaction.pendingDelete()) {
-            if(localNode.getId().equals(transaction.sourceNode)) {
-                deleteSourceFile(transaction);
+            } else if (isSource && transaction.pendingDelete(i)) {
+                deleteSourceFile(context, transaction, i);
                 actioned = true;
             }
         }
 
+        if(actioned) {
+            // A new checkpoint is only needed by this node, so it doesn't give the peer anything to do
+            final boolean urgent = transaction.getStatus()!=FileTransaction.STATUS_IN_PROGRESS
+                    || (peerWasIdle && hasWork(transaction, peerIsSource, peerIsDestination));
+            transaction.setChangedFromIndex(start);
+            TransactionPublisher.publish(context, transaction, localNode.getId(), urgent);
+        }
+
         return actioned;
     }
 
-    private void loadSourceFile(@NonNull final FileTransaction transaction) {
-        final File file = transaction.getActionableSourceFile(this);
+    /**
+     * @return Whether a node with the given roles has a file in the transaction's pipeline that it can action now.
+     */
+    private static boolean hasWork(@NonNull final FileTransaction transaction, final boolean asSource, final boolean asDestination) {
+        final int end = transaction.getPipelineEnd();
+        for (int i = transaction.getActionableIndex(); i < end; i++) {
+            if((asSource && (transaction.pendingCopy(i) || transaction.pendingDelete(i)))
+                    || (asDestination && transaction.pendingSave(i) && !transaction.isInterrupted(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void loadSourceFile(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index) {
+        final File file = transaction.getSourceFile(context, index);
+        final FileMetadata metadata = FileMetadata.stat(file);
 
-        if(!file.exists() || file.isDirectory()) {
+        if(!metadata.exists || metadata.isDirectory) {
             transaction.status = FileTransaction.STATUS_FAILED_FILE_NOT_FOUND;
-        } else if(!file.canRead()) {
+        } else if(!metadata.canRead) {
             transaction.status = FileTransaction.STATUS_FAILED_NO_READ_PERMISSION;
         } else {
-            transaction.fileAsset = Asset.createFromUri(Uri.fromFile(file));
-        }
+            try {
+                if(!transaction.hasSourceMetadata(index)) {
+                    transaction.setSourceMetadata(index, metadata.length, FileHasher.hash(file));
+                    if(TransferCompression.shouldCompress(file, metadata.length)) {
+                        transaction.setCompressed(index);
+                    }
+                }
 
-        updateTransaction(transaction);
+                if(ChannelTransport.shouldStream(metadata.length)) {
+                    // The destination only pulls the stream if it doesn't already have the file
+                    transaction.setStreamed(index);
+                } else if(!transaction.isContentRequested(index) && metadata.length>=OFFER_THRESHOLD_BYTES) {
+                    transaction.setContentOffered(index);
+                } else if(transaction.isCompressed(index)) {
+                    transaction.setFileAsset(index, Asset.createFromBytes(TransferCompression.compress(file, metadata.length)));
+                } else {
+                    transaction.setFileAsset(index, Asset.createFromUri(Uri.fromFile(file)));
+                }
+            } catch (IOException e) {
+                // Permission was already checked, so this is a read error
+                transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+            }
+        }
     }
 
-    private void saveDestinationFile(@NonNull final FileTransaction transaction) {
-        final File directory = transaction.getDestinationDirectoryFile(this);
+    private static void saveDestinationFile(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index) {
+        final File directory = transaction.getDestinationDirectoryFile(context);
         directory.mkdirs();
 
         if (!directory.isDirectory()) {
             transaction.status = FileTransaction.STATUS_FAILED_BAD_DESTINATION;
         } else {
-            assert transaction.fileAsset!=null;
-            final File file = new File(directory, transaction.getActionableSourceFileName());
+            final File file = new File(directory, transaction.getSourceFileName(index));
             Log.d("Notary", "Saving file to: " + file.getAbsolutePath());
+            final FileMetadata existing = FileMetadata.stat(file);
 
-            if(file.exists()) {
+            if(existing.exists && transaction.hasSourceMetadata(index)) {
                 // File exists already.
+                // Compare it with the source's size and hash. If they are the same, count it as a success.
+                // If they differ, and the transaction allows it, update it to match.
+                final boolean matches;
+                try {
+                    matches = FileHasher.matches(file, existing, transaction.getSourceSize(index), transaction.getSourceHash(index));
+                } catch (IOException e) {
+                    transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+                    return;
+                }
+
+                if(matches) {
+                    transaction.setHasCopied(index);
+                } else if(!transaction.shouldUpdateExisting() || existing.isDirectory) {
+                    transaction.status = FileTransaction.STATUS_FAILED_FILE_ALREADY_EXISTS;
+                } else if(transaction.getFileAsset(index)!=null) {
+                    saveAssetFile(context, transaction, index, directory, file);
+                } else {
+                    updateExistingFile(context, transaction, index, directory, file, existing);
+                }
+            } else if(existing.exists) {
+                // File exists already, and the source didn't send a hash.
                 // Compare them. If they are the same, count it as a success.
+                InputStream remoteIn = null;
                 try {
-                    final InputStream assetIn = openAssetInputStream(transaction.fileAsset);
-                    final InputStream fileIn = new FileInputStream(file);
+                    final long remoteSize;
+                    if(transaction.isStreamed(index)) {
+                        remoteSize = transaction.getSourceSize(index);
+                        remoteIn = ChannelTransport.openSourceStream(context, transaction, index, 0);
+                    } else {
+                        final Asset asset = transaction.getFileAsset(index);
+                        assert asset!=null;
+                        final ParcelFileDescriptor descriptor = openAssetDescriptor(context, asset);
+                        final long statSize = descriptor.getStatSize();
+                        remoteSize = statSize>=0 && !transaction.isCompressed(index) ? statSize : ContentComparator.UNKNOWN_SIZE;
+                        remoteIn = new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+                    }
+                    if(transaction.isCompressed(index)) {
+                        remoteIn = TransferCompression.decompress(remoteIn);
+                    }
 
-                    if(streamEquals(assetIn, fileIn)) {
-                        transaction.setHasCopied();
+                    if(ContentComparator.contentEquals(remoteIn, remoteSize, file)) {
+                        transaction.setHasCopied(index);
                     } else {
                         transaction.status = FileTransaction.STATUS_FAILED_FILE_ALREADY_EXISTS;
                     }
                 } catch (Exception e) {
                     transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+                } finally {
+                    ChannelTransport.closeQuietly(remoteIn);
                 }
+            } else if((!transaction.hasContent(index) || transaction.isStreamed(index)) && !hasSpaceFor(transaction, index, directory)) {
+                // Checked before any of the file's contents are sent
+                transaction.status = FileTransaction.STATUS_FAILED_INSUFFICIENT_SPACE;
+            } else if(!transaction.hasContent(index)) {
+                transaction.setContentRequested(index);
+            } else if(transaction.isStreamed(index)) {
+                saveStreamedFile(context, transaction, index, directory, file);
             } else {
-                try {
-                    final InputStream in = openAssetInputStream(transaction.fileAsset);
-                    final FileOutputStream out = new FileOutputStream(file);
+                saveAssetFile(context, transaction, index, directory, file);
+            }
+        }
+    }
 
-                    final byte[] buffer = new byte[1024];
-                    int count;
-                    while ((count = in.read(buffer)) != -1) {
-                        out.write(buffer, 0, count);
-                    }
+    private static void saveAssetFile(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index,
+                                      @NonNull final File directory, @NonNull final File file) {
+        try {
+            final Asset asset = transaction.getFileAsset(index);
+            assert asset!=null;
+            final File partialFile = new File(directory, transaction.getPartialFileName(index));
+            if(transaction.isCompressed(index)) {
+                AtomicFileWriter.writeDecompressed(openAssetDescriptor(context, asset), partialFile, file, transaction.getSourceHash(index));
+            } else {
+                AtomicFileWriter.write(openAssetDescriptor(context, asset), partialFile, file, transaction.getSourceHash(index));
+            }
+            transaction.setHasCopied(index);
+        } catch (Exception e) {
+            transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+        }
+    }
 
-                    out.flush();
-                    transaction.setHasCopied();
+    /**
+     * Updates an existing file to match the source, by receiving only the parts that differ.
+     * An interrupted update is started again when the peer reconnects, a limited number of times.
+     * An update that the source rejects or can't finish fails straight away.
+     */
+    private static void updateExistingFile(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index,
+                                           @NonNull final File directory, @NonNull final File file,
+                                           @NonNull final FileMetadata existing) {
+        if(!hasSpaceFor(transaction, index, directory)) {
+            transaction.status = FileTransaction.STATUS_FAILED_INSUFFICIENT_SPACE;
+            return;
+        }
 
-                    in.close();
-                    out.close();
-                } catch (Exception e) {
-                    transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
-                }
+        final File partialFile = new File(directory, transaction.getPartialFileName(index));
+        try {
+            if(DeltaTransport.update(context, transaction, index, file, existing.length, partialFile)) {
+                transaction.setHasCopied(index);
+            } else {
+                transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+            }
+        } catch (IOException e) {
+            // An update always starts again from the beginning, so every interruption counts
+            Log.w("Notary", "Update of existing file interrupted", e);
+            if(transaction.setInterrupted(index, 0) >= MAX_SAVE_ATTEMPTS) {
+                Log.w("Notary", "Giving up on update after "+MAX_SAVE_ATTEMPTS+" attempts");
+                transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
             }
         }
+    }
 
-        updateTransaction(transaction);
+    /**
+     * @return Whether the directory has room for the rest of the file that hasn't been written yet.
+     */
+    private static boolean hasSpaceFor(@NonNull final FileTransaction transaction, final int index, @NonNull final File directory) {
+        return directory.getUsableSpace() >= transaction.getSourceSize(index) - transaction.getCommittedOffset(index);
     }
 
-    private boolean streamEquals(@NonNull InputStream in1, @NonNull InputStream in2) throws IOException {
-        final byte[] buffer1 = new byte[1024];
-        final byte[] buffer2 = new byte[1024];
-        int count;
-        while( (count = in1.read(buffer1)) != -1) {
-            if(in2.read(buffer2)!=count || !Arrays.equals(buffer1, buffer2) ) {
-                return false;
+    /**
+     * Receives a streamed file into a partial file, which is renamed once the whole file has arrived.
+     * The partial file is periodically synced to disk, so that an interrupted transfer can be resumed
+     * from the last synced offset.
+     */
+    private static void saveStreamedFile(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index,
+                                         @NonNull final File directory, @NonNull final File file) {
+        final File partialFile = new File(directory, transaction.getPartialFileName(index));
+        long committed = Math.min(transaction.getCommittedOffset(index), partialFile.length());
+
+        InputStream in = null;
+        FileOutputStream out = null;
+        try {
+            if(partialFile.exists()) {
+                final RandomAccessFile truncator = new RandomAccessFile(partialFile, "rw");
+                truncator.setLength(committed);
+                truncator.close();
             }
+
+            in = ChannelTransport.openSourceStream(context, transaction, index, committed);
+            if(transaction.isCompressed(index)) {
+                // Inflated as it arrives, so offsets still count bytes of the file itself
+                in = TransferCompression.decompress(in);
+            }
+            out = new FileOutputStream(partialFile, true);
+
+            // Everything received is hashed, including what was written before a resume
+            final MessageDigest digest = FileHasher.createDigest();
+            FileHasher.update(digest, partialFile, committed);
+
+            final ReadableByteChannel source = Channels.newChannel(in);
+            final FileChannel target = out.getChannel();
+            final ByteBuffer buffer = ByteBuffer.allocateDirect(AtomicFileWriter.BUFFER_SIZE);
+
+            long written = committed;
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer.duplicate());
+                while (buffer.hasRemaining()) {
+                    written += target.write(buffer);
+                }
+                buffer.clear();
+
+                if(written - committed >= CHECKPOINT_INTERVAL_BYTES) {
+                    target.force(false);
+                    committed = written;
+                }
+            }
+
+            if(written!=transaction.getSourceSize(index)) {
+                failStreamedFile(transaction, partialFile, "Stream ended after "+written+" of "+transaction.getSourceSize(index)+" bytes");
+                return;
+            } else if(transaction.hasSourceMetadata(index) && !FileHasher.toHex(digest.digest()).equals(transaction.getSourceHash(index))) {
+                failStreamedFile(transaction, partialFile, "Streamed file doesn't match the source's hash");
+                return;
+            }
+
+            try {
+                AtomicFileWriter.commit(out, partialFile, file);
+                transaction.setHasCopied(index);
+            } catch (IOException e) {
+                transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+            }
+        } catch (EOFException e) {
+            // A compressed stream that the source closed part way through
+            failStreamedFile(transaction, partialFile, "Compressed stream ended early");
+        } catch (IOException e) {
+            Log.w("Notary", "Streamed transfer interrupted at byte "+committed, e);
+            if(transaction.setInterrupted(index, committed) >= MAX_SAVE_ATTEMPTS) {
+                Log.w("Notary", "Giving up on streamed transfer after "+MAX_SAVE_ATTEMPTS+" attempts without progress");
+                transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
+            }
+        } finally {
+            ChannelTransport.closeQuietly(in);
+            ChannelTransport.closeQuietly(out);
         }
+    }
 
-        return true;
+    /**
+     * Fails a streamed save that the source ended early. The source only does that if it can't
+     * read the file, or the file changed after it was hashed, so trying again wouldn't help.
+     */
+    private static void failStreamedFile(@NonNull final FileTransaction transaction, @NonNull final File partialFile,
+                                         @NonNull final String reason) {
+        Log.w("Notary", reason);
+        partialFile.delete();
+        transaction.status = FileTransaction.STATUS_FAILED_UNKNOWN;
     }
 
-    private void deleteSourceFile(@NonNull final FileTransaction transaction) {
-        final File file = transaction.getActionableSourceFile(this);
+    private static void deleteSourceFile(@NonNull final Context context, @NonNull final FileTransaction transaction, final int index) {
+        final File file = transaction.getSourceFile(context, index);
 
         if(!file.exists()) {
-            transaction.setHasDeleted();
+            transaction.setHasDeleted(index);
         } else if(file.delete()) {
-            transaction.setHasDeleted();
+            transaction.setHasDeleted(index);
         } else {
             transaction.status = FileTransaction.STATUS_FAILED_NO_DELETE_PERMISSION;
         }
-
-        updateTransaction(transaction);
     }
 
     @WorkerThread
-    private void updateTransaction(@NonNull final FileTransaction transaction) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API).build();
-
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-
-            // Delete old data
-            final Uri uri = new Uri.Builder()
-                    .scheme(PutDataRequest.WEAR_URI_SCHEME)
-                    .path(transaction.getDataApiPath())
-                    .build();
-            Wearable.DataApi.deleteDataItems(apiClient, uri);
-
-            // Put new transaction
-            Wearable.DataApi.putDataItem(apiClient, transaction.asPutDataRequest());
-            apiClient.disconnect();
+    @NonNull private static ParcelFileDescriptor openAssetDescriptor(@NonNull final Context context, @NonNull final Asset asset) throws IOException {
+        final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+        if(apiClient!=null) {
+            try {
+                final ParcelFileDescriptor descriptor = Wearable.DataApi.getFdForAsset(apiClient, asset).await().getFd();
+                if(descriptor==null) {
+                    throw new IOException("Unable to open asset");
+                }
+                return descriptor;
+            } finally {
+                SharedApiClient.release();
+            }
         } else {
-            throw new IllegalStateException("Unable to connect to wearable API");
+            throw new IOException("Unable to connect to wearable API");
         }
     }
 
-    @WorkerThread
-    private InputStream openAssetInputStream(@NonNull final Asset asset) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API).build();
+    @Override public void onChannelOpened(@NonNull final Channel channel) {
+        super.onChannelOpened(channel);
 
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            return Wearable.DataApi.getFdForAsset(apiClient, asset).await().getInputStream();
-        } else {
-            throw new IllegalStateException("Unable to connect to wearable API");
+        // Handled in the background, so that a long transfer doesn't hold up the service's other callbacks
+        if(FileTransaction.isStreamChannelPath(channel.getPath())) {
+            ChannelTransport.onStreamChannelOpened(getApplicationContext(), channel);
+        } else if(FileTransaction.isDeltaChannelPath(channel.getPath())) {
+            DeltaTransport.onDeltaChannelOpened(getApplicationContext(), channel);
         }
     }
 
-
     @Override public void onMessageReceived(@NonNull final MessageEvent messageEvent) {
         super.onMessageReceived(messageEvent);
 
         if(messageEvent.getPath().equals(Notary.REQUEST_LIST_FILES)) {
-            final byte[] data = messageEvent.getData();
-            final String requestedDirectory = data.length>0?new String(data):null;
-            final String usedDirectory = requestedDirectory!=null?FileTransaction.normalizePath(this, requestedDirectory):FileTransaction.getDefaultDirectory(this);
-
-            try {
-                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
-                final ObjectOutputStream out = new ObjectOutputStream(bytes);
-
-                out.writeObject(createFileListResponse(usedDirectory, requestedDirectory));
+            final FileListRequest request = FileListRequest.fromByteArray(messageEvent.getData());
+            final String usedDirectory = request.directory!=null?FileTransaction.normalizePath(this, request.directory):FileTransaction.getDefaultDirectory(this);
 
-                sendMessage(messageEvent.getSourceNodeId(), Notary.RESPONSE_LIST_FILES, bytes.toByteArray());
-            }catch(IOException e) {}
+            final byte[] response = FileListCodec.encode(createFileListResponse(usedDirectory, request));
+            sendMessage(messageEvent.getSourceNodeId(), Notary.RESPONSE_LIST_FILES, response);
         }
-
-        updateDiskCapacity(this);
     }
 
-    private FileListContainer createFileListResponse(@NonNull final String usedDirectory, @Nullable final String requestedDirectory) {
+    /**
+     * Lists one page of the directory, in order of name. Only changes are listed if the
+     * requester already has a recent listing.
+     */
+    private FileListContainer createFileListResponse(@NonNull final String usedDirectory, @NonNull final FileListRequest request) {
         final File directoryFile = new File(usedDirectory);
 
         final FileListContainer response = new FileListContainer();
-        response.directory = requestedDirectory;
+        response.directory = request.directory;
+        response.cursor = request.cursor;
+        response.requestId = request.requestId;
 
         if(directoryFile.exists() && !directoryFile.isDirectory()) {
             response.outcome = FileListContainer.ERROR_DIRECTORY_NOT_FOUND;
+            response.setFileCount(0);
+        } else if(!directoryFile.exists()) {
+            // Nothing to watch, so this isn't recorded
+            response.setFileCount(0);
         } else {
-            File[] contents = directoryFile.listFiles();
-            if(contents==null) {
-                contents = new File[0];
-            }
-            response.files = new String[contents.length];
-            response.isDirectory = new boolean[contents.length];
-            for (int i = 0; i < contents.length; i++) {
-                response.files[i] = contents[i].getName();
-                response.isDirectory[i] = contents[i].isDirectory();
-            }
+            DirectorySnapshot.forDirectory(directoryFile).fillPage(request, response);
         }
 
         return response;
@@ -350,12 +673,13 @@ public class NotaryWearableListenerService extends WearableListenerService {
 
     @WorkerThread
     private void sendMessage(@NonNull final String node, @NonNull final String path, @NonNull final byte[] data) {
-        final GoogleApiClient apiClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API).build();
-        final ConnectionResult result = apiClient.blockingConnect();
-        if(result.isSuccess()) {
-            Wearable.MessageApi.sendMessage(apiClient, node, path, data);
-            apiClient.disconnect();
+        final GoogleApiClient apiClient = SharedApiClient.acquire(this);
+        if(apiClient!=null) {
+            try {
+                Wearable.MessageApi.sendMessage(apiClient, node, path, data).await();
+            } finally {
+                SharedApiClient.release();
+            }
         }
     }
 }
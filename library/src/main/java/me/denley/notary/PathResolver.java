@@ -0,0 +1,116 @@
+package me.denley.notary;
+
+import android.content.ComponentCallbacks;
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.PackageManager;
+import android.content.res.Configuration;
+import android.os.Build;
+import android.os.Environment;
+import android.support.annotation.NonNull;
+
+/**
+ * Resolves the root directories behind the encoded path prefixes.
+ *
+ * Each root is resolved once per process, and kept until the next configuration change. In
+ * particular, the default directory is read from the application's meta-data, which is too
+ * slow to look up for every path.
+ */
+final class PathResolver {
+
+    private static final Object LOCK = new Object();
+
+    private static final ComponentCallbacks INVALIDATE_ON_CONFIGURATION_CHANGE = new ComponentCallbacks() {
+        @Override public void onConfigurationChanged(Configuration newConfig) {
+            invalidate();
+        }
+
+        @Override public void onLowMemory() {}
+    };
+
+    private static boolean callbacksRegistered = false;
+
+    /** Incremented whenever the cached roots are discarded. */
+    private static volatile int generation = 0;
+
+    private static String externalStorageDirectory;
+    private static String appPrivateDirectory;
+    private static String defaultDirectoryEncoded;
+    private static String defaultDirectory;
+
+    private PathResolver() {}
+
+    /**
+     * @return The number of times the cached roots have been discarded. Anything derived from
+     * the roots is out of date once this changes.
+     */
+    static int getGeneration() {
+        return generation;
+    }
+
+    static void invalidate() {
+        synchronized (LOCK) {
+            externalStorageDirectory = null;
+            appPrivateDirectory = null;
+            defaultDirectoryEncoded = null;
+            defaultDirectory = null;
+            generation++;
+        }
+    }
+
+    @NonNull static String getExternalStorageDirectory() {
+        synchronized (LOCK) {
+            if(externalStorageDirectory==null) {
+                externalStorageDirectory = Environment.getExternalStorageDirectory().getAbsolutePath();
+            }
+            return externalStorageDirectory;
+        }
+    }
+
+    @NonNull static String getAppPrivateDirectory(@NonNull final Context context) {
+        synchronized (LOCK) {
+            registerCallbacks(context);
+            if(appPrivateDirectory==null) {
+                appPrivateDirectory = context.getFilesDir().getAbsolutePath();
+            }
+            return appPrivateDirectory;
+        }
+    }
+
+    static String getDefaultDirectoryEncoded(@NonNull final Context context) {
+        synchronized (LOCK) {
+            registerCallbacks(context);
+            if(defaultDirectoryEncoded==null) {
+                try {
+                    final ApplicationInfo info = context.getPackageManager().getApplicationInfo(context.getPackageName(), PackageManager.GET_META_DATA);
+                    defaultDirectoryEncoded = info.metaData.getString("default_path");
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+            return defaultDirectoryEncoded;
+        }
+    }
+
+    static String getDefaultDirectory(@NonNull final Context context) {
+        synchronized (LOCK) {
+            if(defaultDirectory==null) {
+                final String encodedPath = getDefaultDirectoryEncoded(context);
+                if(encodedPath.startsWith(FileTransaction.DEFAULT_DIRECTORY)) {
+                    throw new IllegalArgumentException("Default directory references itself recursively.");
+                }
+                defaultDirectory = FileTransaction.normalizePath(context, encodedPath);
+            }
+            return defaultDirectory;
+        }
+    }
+
+    private static void registerCallbacks(@NonNull final Context context) {
+        // Component callbacks can't be registered before API 14. The roots are simply never invalidated there.
+        if(!callbacksRegistered && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            context.getApplicationContext().registerComponentCallbacks(INVALIDATE_ON_CONFIGURATION_CHANGE);
+            callbacksRegistered = true;
+        }
+    }
+
+}
@@ -2,11 +2,16 @@ package me.denley.notary;
 
 public class PendingFile extends File {
 
-    public final FileTransaction transaction;
+    /** Shared with the transaction's other pending files, rather than copied. */
+    private final FileTransaction transaction;
 
     PendingFile(String directory, FileTransaction transaction, int sourceFileIndex) {
         super(new java.io.File(directory, transaction.getSourceFileName(sourceFileIndex)).getAbsolutePath(), false, false, false);
         this.transaction = transaction;
     }
 
+    public FileTransaction getTransaction() {
+        return transaction;
+    }
+
 }
@@ -0,0 +1,52 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.content.Intent;
+import android.support.annotation.NonNull;
+import android.util.Log;
+
+/**
+ * Keeps the {@link NotaryWearableListenerService} started while it has background work running,
+ * so that the process isn't treated as idle and killed part way through a transfer once the
+ * service has been unbound.
+ *
+ * Callers must balance each {@link #acquire(Context)} with a call to {@link #release(Context)}.
+ * The service is started when the first reference is acquired, and stopped once the last one
+ * is released.
+ */
+final class ServiceKeepAlive {
+
+    private static final String TAG = "Notary";
+
+    private static final Object LOCK = new Object();
+
+    private static int references = 0;
+
+    private ServiceKeepAlive() {}
+
+    static void acquire(@NonNull final Context context) {
+        synchronized (LOCK) {
+            // Started and stopped while holding the lock, so that they can't be delivered out of order
+            if(references++==0) {
+                try {
+                    context.startService(createIntent(context));
+                } catch (RuntimeException e) {
+                    Log.w(TAG, "Unable to keep the listener service running", e);
+                }
+            }
+        }
+    }
+
+    static void release(@NonNull final Context context) {
+        synchronized (LOCK) {
+            if(--references==0) {
+                context.stopService(createIntent(context));
+            }
+        }
+    }
+
+    @NonNull private static Intent createIntent(@NonNull final Context context) {
+        return new Intent(context.getApplicationContext(), NotaryWearableListenerService.class);
+    }
+
+}
@@ -0,0 +1,186 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Wearable;
+
+/**
+ * A single, lazily connected GoogleApiClient shared by every Wearable API call in the process.
+ *
+ * Callers must balance each successful {@link #acquire(Context)} with a call to {@link #release()}.
+ * Once the last reference is released, the client stays connected for a short idle period so that
+ * back-to-back operations don't pay for another connection handshake.
+ */
+final class SharedApiClient {
+
+    private static final String TAG = "Notary";
+
+    private static final long IDLE_TIMEOUT_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final Object LOCK = new Object();
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final Runnable DISCONNECT_IF_IDLE = new Runnable() {
+        @Override public void run() {
+            synchronized (LOCK) {
+                if(references==0 && apiClient!=null) {
+                    apiClient.disconnect();
+                    apiClient = null;
+                }
+            }
+        }
+    };
+
+    @Nullable private static GoogleApiClient apiClient;
+    private static int references = 0;
+
+    /** Whether a thread is connecting the client, outside of the lock. */
+    private static boolean connecting = false;
+
+    @Nullable private static ConnectionResult lastConnectionResult;
+
+    private static int connectCount = 0;
+    private static int failedConnectCount = 0;
+    private static long totalConnectMillis = 0;
+    private static long maxConnectMillis = 0;
+
+    private SharedApiClient() {}
+
+    /**
+     * Returns the shared client, connecting it first if necessary.
+     *
+     * The connection is made outside of the lock, so that {@link #release()} never waits for it.
+     * Callers that arrive while another thread is connecting wait for that connection instead of
+     * starting their own.
+     *
+     * @return The connected client, or null if the connection failed.
+     */
+    @WorkerThread
+    @Nullable static GoogleApiClient acquire(@NonNull final Context context) {
+        final GoogleApiClient client;
+        synchronized (LOCK) {
+            HANDLER.removeCallbacks(DISCONNECT_IF_IDLE);
+
+            // Counted straight away, so that the client isn't disconnected while it connects
+            references++;
+
+            while(connecting) {
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    releaseLocked();
+                    return null;
+                }
+            }
+
+            if(apiClient!=null && apiClient.isConnected()) {
+                return apiClient;
+            }
+
+            if(apiClient==null) {
+                apiClient = new GoogleApiClient.Builder(context.getApplicationContext())
+                        .addApi(Wearable.API)
+                        .build();
+            }
+            client = apiClient;
+            connecting = true;
+        }
+
+        final long start = SystemClock.elapsedRealtime();
+        ConnectionResult result = null;
+        try {
+            result = client.blockingConnect();
+        } finally {
+            final long elapsed = SystemClock.elapsedRealtime() - start;
+            synchronized (LOCK) {
+                connecting = false;
+                LOCK.notifyAll();
+                lastConnectionResult = result;
+
+                if(result!=null && result.isSuccess()) {
+                    connectCount++;
+                    totalConnectMillis += elapsed;
+                    maxConnectMillis = Math.max(maxConnectMillis, elapsed);
+                    Log.d(TAG, "Connected to wearable API in " + elapsed + "ms");
+                } else {
+                    failedConnectCount++;
+                    Log.e(TAG, "Unable to connect to wearable API: " + (result==null ? "error" : result.getErrorCode()));
+                    if(apiClient==client) {
+                        apiClient = null;
+                    }
+                    releaseLocked();
+                }
+            }
+        }
+
+        return result.isSuccess() ? client : null;
+    }
+
+    /**
+     * Releases a reference obtained by {@link #acquire(Context)}.
+     */
+    static void release() {
+        synchronized (LOCK) {
+            releaseLocked();
+        }
+    }
+
+    private static void releaseLocked() {
+        if(references==0) {
+            throw new IllegalStateException("Shared API client released more times than acquired");
+        }
+        references--;
+        scheduleIdleDisconnect();
+    }
+
+    private static void scheduleIdleDisconnect() {
+        if(references==0) {
+            HANDLER.postDelayed(DISCONNECT_IF_IDLE, IDLE_TIMEOUT_MILLIS);
+        }
+    }
+
+    /**
+     * @return The result of the most recent connection attempt, or null if none has been made.
+     */
+    @Nullable static ConnectionResult getLastConnectionResult() {
+        synchronized (LOCK) {
+            return lastConnectionResult;
+        }
+    }
+
+    static int getConnectCount() {
+        synchronized (LOCK) {
+            return connectCount;
+        }
+    }
+
+    static int getFailedConnectCount() {
+        synchronized (LOCK) {
+            return failedConnectCount;
+        }
+    }
+
+    static long getAverageConnectMillis() {
+        synchronized (LOCK) {
+            return connectCount==0 ? 0 : totalConnectMillis / connectCount;
+        }
+    }
+
+    static long getMaxConnectMillis() {
+        synchronized (LOCK) {
+            return maxConnectMillis;
+        }
+    }
+
+}
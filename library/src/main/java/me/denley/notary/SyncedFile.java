@@ -10,4 +10,8 @@ public class SyncedFile extends File {
         super(file);
     }
 
+    SyncedFile(File file) {
+        super(file);
+    }
+
 }
@@ -0,0 +1,185 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs transaction changes on the {@link NotaryExecutor}, so that independent transactions
+ * progress in parallel.
+ *
+ * At most {@link #getConcurrency()} workers run at once. Each worker processes transactions
+ * in the order they became ready, until none are left waiting. A transaction is never processed
+ * by more than one worker at a time. Changes that arrive while a transaction is being processed
+ * are combined, and processed once the current run has finished.
+ *
+ * The listener service is kept started by each running worker, so that the process isn't killed
+ * part way through a transaction once the service that dispatched it has been unbound. Changes
+ * are processed with the application context, rather than the service that dispatched them.
+ */
+final class TransactionDispatcher {
+
+    private static final String TAG = "Notary";
+
+    static final int DEFAULT_CONCURRENCY = 2;
+
+    interface Handler {
+        void onTransactionChanged(@NonNull Context context, @NonNull String dataApiPath, boolean notify, boolean resumeInterrupted);
+    }
+
+    private static final Object LOCK = new Object();
+
+    /** Changes waiting to be processed, by transaction path. */
+    private static final Map<String, PendingChange> PENDING = new HashMap<>();
+    /** Transactions with pending changes that aren't being processed yet, in the order they became ready. */
+    private static final Set<String> READY = new LinkedHashSet<>();
+    /** Transactions currently being processed. */
+    private static final Set<String> RUNNING = new HashSet<>();
+
+    private static int concurrency = DEFAULT_CONCURRENCY;
+    /** The number of workers submitted to the executor that haven't finished yet. */
+    private static int workers = 0;
+    /** The application context, once a change has been dispatched. */
+    @Nullable private static Context context;
+
+    private static final Runnable WORKER = new Runnable() {
+        @Override public void run() {
+            work();
+        }
+    };
+
+    private TransactionDispatcher() {}
+
+    /**
+     * Sets the maximum number of transactions that may be processed at once. The number actually
+     * processed at once is also limited by the size of the {@link NotaryExecutor}'s pool.
+     */
+    static void setConcurrency(final int concurrency) {
+        if(concurrency < 1) {
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        }
+
+        final int added;
+        synchronized (LOCK) {
+            TransactionDispatcher.concurrency = concurrency;
+            added = claimWorkersLocked();
+        }
+        startWorkers(added);
+    }
+
+    static int getConcurrency() {
+        synchronized (LOCK) {
+            return concurrency;
+        }
+    }
+
+    /**
+     * Schedules a transaction to be processed by the given handler.
+     */
+    static void dispatch(@NonNull final Context context, @NonNull final String dataApiPath, final boolean notify,
+                         final boolean resumeInterrupted, @NonNull final Handler handler) {
+        final int added;
+        synchronized (LOCK) {
+            TransactionDispatcher.context = context.getApplicationContext();
+
+            PendingChange change = PENDING.get(dataApiPath);
+            if(change==null) {
+                change = new PendingChange();
+                PENDING.put(dataApiPath, change);
+            }
+            change.notify |= notify;
+            change.resumeInterrupted |= resumeInterrupted;
+            change.handler = handler;
+
+            if(RUNNING.contains(dataApiPath)) {
+                // Picked up by the worker already processing this transaction
+                return;
+            }
+            READY.add(dataApiPath);
+            added = claimWorkersLocked();
+        }
+        startWorkers(added);
+    }
+
+    /**
+     * Reserves a worker for each ready transaction, up to the concurrency limit. A worker
+     * reserved for a transaction that another worker picks up first just finds nothing to do.
+     *
+     * @return The number of workers reserved, which the caller must start outside of the lock.
+     */
+    private static int claimWorkersLocked() {
+        final int added = Math.max(0, Math.min(READY.size(), concurrency - workers));
+        workers += added;
+        return added;
+    }
+
+    private static void startWorkers(final int count) {
+        for (int i = 0; i < count; i++) {
+            // Released by the worker once it finishes
+            ServiceKeepAlive.acquire(getContext());
+            NotaryExecutor.execute(WORKER);
+        }
+    }
+
+    @NonNull private static Context getContext() {
+        synchronized (LOCK) {
+            assert context!=null;
+            return context;
+        }
+    }
+
+    private static void work() {
+        while(true) {
+            final String dataApiPath;
+            synchronized (LOCK) {
+                final Iterator<String> iterator = READY.iterator();
+                if(!iterator.hasNext() || workers > concurrency) {
+                    // Nothing left to do, or the limit has been lowered
+                    workers--;
+                    ServiceKeepAlive.release(getContext());
+                    return;
+                }
+                dataApiPath = iterator.next();
+                iterator.remove();
+                RUNNING.add(dataApiPath);
+            }
+
+            drain(dataApiPath);
+        }
+    }
+
+    private static void drain(@NonNull final String dataApiPath) {
+        while(true) {
+            final PendingChange change;
+            synchronized (LOCK) {
+                change = PENDING.remove(dataApiPath);
+                if(change==null) {
+                    RUNNING.remove(dataApiPath);
+                    return;
+                }
+            }
+
+            try {
+                change.handler.onTransactionChanged(getContext(), dataApiPath, change.notify, change.resumeInterrupted);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error processing transaction " + dataApiPath, e);
+            }
+        }
+    }
+
+
+    private static final class PendingChange {
+        boolean notify = false;
+        boolean resumeInterrupted = false;
+        @Nullable Handler handler;
+    }
+
+}
@@ -0,0 +1,174 @@
+package me.denley.notary;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.PutDataRequest;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes this node's copy of each transaction to the data layer.
+ *
+ * Updates are held for a short window, and an update that arrives within the window replaces
+ * the one that is waiting, so that a run of quick steps produces a single data layer sync.
+ * Urgent updates, which the peer is waiting on, are written straight away and marked urgent
+ * so that the data layer doesn't delay them either.
+ *
+ * An update that can't be written is kept, and written again after a delay that doubles with
+ * each failure, because the peer may be waiting on it.
+ */
+final class TransactionPublisher {
+
+    private static final String TAG = "Notary";
+
+    static final long COALESCE_WINDOW_MILLIS = 250;
+
+    private static final long MAX_RETRY_DELAY_MILLIS = 30 * DateUtils.SECOND_IN_MILLIS;
+
+    private static final Object LOCK = new Object();
+
+    /** Held while writing, so that an older update can never overwrite a newer one. */
+    private static final Object WRITE_LOCK = new Object();
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /** Updates that have not yet been written, by transaction path. */
+    private static final Map<String, PendingUpdate> PENDING = new HashMap<>();
+
+    private TransactionPublisher() {}
+
+    /**
+     * @param writerNode The ID of this node.
+     * @param urgent Whether the peer needs this update to make progress.
+     */
+    @WorkerThread
+    static void publish(@NonNull final Context context, @NonNull final FileTransaction transaction,
+                        @NonNull final String writerNode, final boolean urgent) {
+        final String path = transaction.getDataApiPath();
+        final PendingUpdate update = new PendingUpdate(transaction, writerNode);
+
+        synchronized (LOCK) {
+            final PendingUpdate previous = PENDING.put(path, update);
+            if(previous!=null) {
+                transaction.coalesceChangedFromIndex(previous.transaction);
+            }
+
+            if(!urgent) {
+                if(previous==null) {
+                    scheduleFlush(context, path, COALESCE_WINDOW_MILLIS);
+                } else {
+                    // Written on the schedule of the update it replaces
+                    update.failures = previous.failures;
+                    update.urgent = previous.urgent;
+                }
+                return;
+            }
+        }
+
+        flush(context, path, true);
+    }
+
+    /**
+     * Applies this node's changes to the transaction that have not yet been written, so that
+     * they aren't actioned again before they reach the data layer.
+     */
+    static void applyUnpublished(@NonNull final FileTransaction transaction) {
+        final PendingUpdate update;
+        synchronized (LOCK) {
+            update = PENDING.get(transaction.getDataApiPath());
+        }
+
+        if(update!=null) {
+            transaction.mergeUnpublished(update.transaction, update.writerNode);
+        }
+    }
+
+    private static void scheduleFlush(@NonNull final Context context, @NonNull final String path, final long delayMillis) {
+        final Context applicationContext = context.getApplicationContext();
+        HANDLER.postDelayed(new Runnable() {
+            @Override public void run() {
+                NotaryExecutor.execute(new Runnable() {
+                    @Override public void run() {
+                        flush(applicationContext, path, false);
+                    }
+                });
+            }
+        }, delayMillis);
+    }
+
+    @WorkerThread
+    private static void flush(@NonNull final Context context, @NonNull final String path, final boolean urgent) {
+        synchronized (WRITE_LOCK) {
+            final PendingUpdate update;
+            synchronized (LOCK) {
+                update = PENDING.get(path);
+            }
+            if(update==null) {
+                // Already written by an urgent update
+                return;
+            }
+
+            final PutDataRequest request = update.transaction.asPutDataRequest();
+            if(urgent || update.urgent) {
+                request.setUrgent();
+            }
+
+            boolean written = false;
+            final GoogleApiClient apiClient = SharedApiClient.acquire(context);
+            if(apiClient!=null) {
+                try {
+                    written = Wearable.DataApi.putDataItem(apiClient, request).await().getStatus().isSuccess();
+                } finally {
+                    SharedApiClient.release();
+                }
+            }
+
+            // Kept until now, so that the transaction can't be loaded without this update in the meantime
+            synchronized (LOCK) {
+                final PendingUpdate current = PENDING.get(path);
+                if(!written) {
+                    // Kept, or included in the update that replaced it, and written again later
+                    Log.w(TAG, "Unable to publish transaction " + path);
+                    current.failures = update.failures + 1;
+                    current.urgent |= urgent || update.urgent;
+                    scheduleFlush(context, path, getRetryDelay(current.failures));
+                } else if(current==update) {
+                    PENDING.remove(path);
+                } else {
+                    // Replaced while being written, without a flush of its own being scheduled
+                    current.failures = 0;
+                    scheduleFlush(context, path, COALESCE_WINDOW_MILLIS);
+                }
+            }
+        }
+    }
+
+    private static long getRetryDelay(final int failures) {
+        return Math.min(MAX_RETRY_DELAY_MILLIS, COALESCE_WINDOW_MILLIS << Math.min(failures, 16));
+    }
+
+
+    private static final class PendingUpdate {
+        @NonNull final FileTransaction transaction;
+        @NonNull final String writerNode;
+        /** The number of times in a row that writing this transaction has failed. */
+        int failures = 0;
+        /** Whether this replaces an urgent update that couldn't be written. */
+        boolean urgent = false;
+
+        PendingUpdate(@NonNull final FileTransaction transaction, @NonNull final String writerNode) {
+            this.transaction = transaction;
+            this.writerNode = writerNode;
+        }
+    }
+
+}
@@ -0,0 +1,200 @@
+package me.denley.notary;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.support.annotation.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compresses file contents in transit, for files that are worth it.
+ *
+ * Whether to compress a file is decided from its suffix where that's conclusive: text formats
+ * always are, and formats that are already compressed never are. Anything else is decided by
+ * deflating a sample from the start of the file. Compressed files are sent as a zlib stream, and
+ * inflated by the destination as they are received, so sizes, hashes and resume offsets all refer
+ * to the uncompressed contents.
+ */
+final class TransferCompression {
+
+    /** Smaller files aren't compressed, as the saving wouldn't cover the overhead. */
+    private static final long MIN_LENGTH_BYTES = 4 * 1024;
+
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /** A sample must deflate to at most this fraction of its size for the file to be compressed. */
+    private static final double MAX_SAMPLE_RATIO = 0.9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Set<String> COMPRESSIBLE_SUFFIXES = new HashSet<>(Arrays.asList(
+            "txt", "log", "csv", "tsv", "json", "xml", "html", "htm", "css", "js", "md", "svg", "gpx", "kml"
+    ));
+
+    private static final Set<String> COMPRESSED_SUFFIXES = new HashSet<>(Arrays.asList(
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "m4a", "aac", "ogg", "oga", "opus", "flac",
+            "mp4", "m4v", "3gp", "mkv", "webm", "mov", "avi",
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "apk", "jar",
+            "docx", "xlsx", "pptx", "odt", "ods", "epub"
+    ));
+
+    private static volatile boolean enabled = true;
+
+    private TransferCompression() {}
+
+    static void setEnabled(final boolean enabled) {
+        TransferCompression.enabled = enabled;
+    }
+
+    static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param length The size of the file, already read from disk.
+     * @return Whether the file should be compressed for transfer.
+     */
+    static boolean shouldCompress(@NonNull final File file, final long length) throws IOException {
+        if(!enabled || length < MIN_LENGTH_BYTES) {
+            return false;
+        }
+
+        final String suffix = me.denley.notary.File.getFileSuffix(file.getName()).toLowerCase(Locale.US);
+        if(COMPRESSED_SUFFIXES.contains(suffix)) {
+            return false;
+        } else if(COMPRESSIBLE_SUFFIXES.contains(suffix)) {
+            return true;
+        }
+
+        final byte[] sample = new byte[(int) Math.min(SAMPLE_SIZE, length)];
+        final InputStream in = new FileInputStream(file);
+        int sampled = 0;
+        try {
+            int count;
+            while(sampled < sample.length && (count = in.read(sample, sampled, sample.length - sampled)) != -1) {
+                sampled += count;
+            }
+        } finally {
+            in.close();
+        }
+
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(sample, 0, sampled);
+            deflater.finish();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long deflated = 0;
+            while(!deflater.finished()) {
+                deflated += deflater.deflate(buffer);
+            }
+            return deflated <= sampled * MAX_SAMPLE_RATIO;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads and compresses the whole file.
+     */
+    @NonNull static byte[] compress(@NonNull final File file, final long length) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.min(length / 2 + 64, Integer.MAX_VALUE - 8));
+        final OutputStream out = compress(bytes);
+        final InputStream in = new FileInputStream(file);
+        try {
+            copy(in, out);
+        } finally {
+            ChannelTransport.closeQuietly(in);
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @return A stream that compresses what is written to it into the given stream. Closing it closes that stream.
+     */
+    @NonNull static OutputStream compress(@NonNull final OutputStream out) {
+        return new CompressingStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION));
+    }
+
+    /**
+     * @return Whether {@link #compressFlushable(OutputStream)} is available, which needs KitKat or later.
+     */
+    static boolean canCompressFlushable() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    /**
+     * @return A stream like {@link #compress(OutputStream)}, that also sends everything written
+     *         to it so far when it is flushed, instead of only what has already been compressed.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @NonNull static OutputStream compressFlushable(@NonNull final OutputStream out) {
+        return new CompressingStream(out, new Deflater(Deflater.DEFAULT_COMPRESSION), true);
+    }
+
+    /**
+     * @return A stream that decompresses the given stream. Closing it closes that stream.
+     */
+    @NonNull static InputStream decompress(@NonNull final InputStream in) {
+        final Inflater inflater = new Inflater();
+        return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+            @Override public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+    }
+
+    static void copy(@NonNull final InputStream in, @NonNull final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+    }
+
+
+    /**
+     * Releases its deflater once it is closed.
+     */
+    private static final class CompressingStream extends DeflaterOutputStream {
+        @NonNull private final Deflater deflater;
+
+        CompressingStream(@NonNull final OutputStream out, @NonNull final Deflater deflater) {
+            super(out, deflater, BUFFER_SIZE);
+            this.deflater = deflater;
+        }
+
+        @TargetApi(Build.VERSION_CODES.KITKAT)
+        CompressingStream(@NonNull final OutputStream out, @NonNull final Deflater deflater, final boolean syncFlush) {
+            super(out, deflater, BUFFER_SIZE, syncFlush);
+            this.deflater = deflater;
+        }
+
+        @Override public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+}
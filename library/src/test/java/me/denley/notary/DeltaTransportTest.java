@@ -0,0 +1,285 @@
+package me.denley.notary;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeltaTransportTest {
+
+    @Rule public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(42);
+
+    @Test public void identicalFileSendsNoLiterals() throws IOException {
+        final byte[] basis = randomBytes(100 * 1024);
+        assertEquals(0, roundTrip(basis, basis));
+    }
+
+    @Test public void appendSendsOnlyNewBytes() throws IOException {
+        final byte[] basis = randomBytes(100 * 1024);
+        final byte[] source = concat(basis, randomBytes(5000));
+        assertEquals(5000, roundTrip(basis, source));
+    }
+
+    @Test public void insertSendsInsertedBytesAndOneBlock() throws IOException {
+        final byte[] basis = randomBytes(200 * 1024);
+        final byte[] source = concat(Arrays.copyOfRange(basis, 0, 70000), randomBytes(1000),
+                Arrays.copyOfRange(basis, 70000, basis.length));
+        final int blockSize = DeltaTransport.chooseBlockSize(basis.length);
+        assertTrue(roundTrip(basis, source) <= 1000 + blockSize);
+    }
+
+    @Test public void deleteSendsAtMostTwoBlocks() throws IOException {
+        final byte[] basis = randomBytes(200 * 1024);
+        final byte[] source = concat(Arrays.copyOfRange(basis, 0, 50000), Arrays.copyOfRange(basis, 60000, basis.length));
+        // The remains of the blocks either side of the deleted range
+        final int blockSize = DeltaTransport.chooseBlockSize(basis.length);
+        assertTrue(roundTrip(basis, source) <= 2 * blockSize);
+    }
+
+    @Test public void emptyBasisSendsEverything() throws IOException {
+        final byte[] source = randomBytes(10000);
+        assertEquals(source.length, roundTrip(new byte[0], source));
+    }
+
+    @Test public void emptySource() throws IOException {
+        assertEquals(0, roundTrip(randomBytes(10000), new byte[0]));
+    }
+
+    @Test public void changesAcrossBufferRefills() throws IOException {
+        // Larger than the source's scan buffer, with changes either side of where it refills
+        final byte[] basis = randomBytes(1024 * 1024);
+        final byte[] source = basis.clone();
+        for (int offset : new int[]{ 1000, 256 * 1024 - 10, 256 * 1024 + 10, 700 * 1024 }) {
+            source[offset] ^= 0xFF;
+        }
+        final int blockSize = DeltaTransport.chooseBlockSize(basis.length);
+        assertTrue(roundTrip(basis, source) <= 4 * blockSize);
+    }
+
+    @Test public void shortLastBlockMatchesAtTail() throws IOException {
+        final int blockSize = DeltaTransport.chooseBlockSize(100 * 1024 + 123);
+        final byte[] basis = randomBytes(100 * 1024 + 123);
+        // Shifted by an insertion at the start, so the short last block is only found at the very end
+        final byte[] source = concat(randomBytes(7), basis);
+        assertTrue(roundTrip(basis, source) < blockSize);
+    }
+
+    @Test public void sourceShorterThanBlock() throws IOException {
+        final byte[] basis = randomBytes(50 * 1024);
+        roundTrip(basis, Arrays.copyOf(basis, 100));
+    }
+
+    @Test public void repeatedContent() throws IOException {
+        final byte[] basis = new byte[64 * 1024];
+        final byte[] source = new byte[80 * 1024];
+        source[40000] = 1;
+        roundTrip(basis, source);
+    }
+
+    @Test public void abortIsReportedAsMinusOne() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(2);
+        out.writeInt(3);
+        out.write(new byte[]{ 1, 2, 3 });
+        out.writeByte(3);
+
+        final File basisFile = write(new byte[0]);
+        final File target = folder.newFile();
+        final RandomAccessFile basis = new RandomAccessFile(basisFile, "r");
+        final FileOutputStream targetOut = new FileOutputStream(target);
+        try {
+            assertEquals(-1, DeltaTransport.apply(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                    basis.getChannel(), 0, 2048, targetOut.getChannel(), FileHasher.createDigest()));
+        } finally {
+            basis.close();
+            targetOut.close();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void copyOutOfRangeIsRejected() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(1);
+        out.writeInt(1);
+        out.writeInt(1);
+        out.writeByte(0);
+
+        final File basisFile = write(randomBytes(2048));
+        final RandomAccessFile basis = new RandomAccessFile(basisFile, "r");
+        final FileOutputStream targetOut = new FileOutputStream(folder.newFile());
+        try {
+            DeltaTransport.apply(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())),
+                    basis.getChannel(), 2048, 2048, targetOut.getChannel(), FileHasher.createDigest());
+        } finally {
+            basis.close();
+            targetOut.close();
+        }
+    }
+
+    @Test(expected = DeltaTransport.MalformedSignaturesException.class)
+    public void unsupportedSignatureVersionIsRejected() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(99);
+        DeltaTransport.Signatures.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    @Test public void largeUnchangedFileIsSentWhileScanning() throws IOException {
+        final byte[] bytes = randomBytes((int) (4 * DeltaTransport.FLUSH_INTERVAL_BYTES));
+        assertEquals(0, roundTrip(bytes, bytes));
+
+        final FlushRecorder delta = new FlushRecorder();
+        DeltaTransport.encode(new ByteArrayInputStream(bytes), readSignatures(bytes), new DataOutputStream(delta));
+        assertTrue(delta.flushedSizes.size() >= 3);
+        for (int i = 1; i < delta.flushedSizes.size(); i++) {
+            assertTrue(delta.flushedSizes.get(i) > delta.flushedSizes.get(i - 1));
+        }
+    }
+
+    @Test public void signaturesAreSentWhileReading() throws IOException {
+        final byte[] bytes = randomBytes((int) (4 * DeltaTransport.FLUSH_INTERVAL_BYTES));
+        final FlushRecorder signatures = new FlushRecorder();
+        DeltaTransport.writeSignatures(write(bytes), bytes.length, DeltaTransport.chooseBlockSize(bytes.length),
+                new DataOutputStream(signatures));
+        assertTrue(signatures.flushedSizes.size() >= 3);
+        assertTrue(signatures.flushedSizes.get(0) > 0);
+    }
+
+    @Test public void rollingChecksumMatchesAdler32() {
+        final byte[] bytes = randomBytes(10000);
+        final int window = 2048;
+        final DeltaTransport.RollingChecksum checksum = new DeltaTransport.RollingChecksum();
+        checksum.reset(bytes, 0, window);
+        for (int offset = 0; offset + window < bytes.length; offset++) {
+            final Adler32 expected = new Adler32();
+            expected.update(bytes, offset, window);
+            assertEquals((int) expected.getValue(), checksum.value());
+            checksum.roll(bytes[offset], bytes[offset + window]);
+        }
+    }
+
+    @Test public void blockSizeIsClamped() {
+        assertEquals(2048, DeltaTransport.chooseBlockSize(0));
+        assertEquals(64 * 1024, DeltaTransport.chooseBlockSize(Long.MAX_VALUE / 2));
+    }
+
+    /**
+     * Encodes the source against the basis, applies the result, and checks that it rebuilds the source.
+     *
+     * @return The number of bytes sent literally.
+     */
+    private long roundTrip(final byte[] basis, final byte[] source) throws IOException {
+        final File basisFile = write(basis);
+        final int blockSize = DeltaTransport.chooseBlockSize(basis.length);
+
+        final ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+        final DataOutputStream signatureOut = new DataOutputStream(signatureBytes);
+        DeltaTransport.writeSignatures(basisFile, basis.length, blockSize, signatureOut);
+        signatureOut.flush();
+        final DeltaTransport.Signatures signatures = DeltaTransport.Signatures.read(
+                new DataInputStream(new ByteArrayInputStream(signatureBytes.toByteArray())));
+
+        final ByteArrayOutputStream deltaBytes = new ByteArrayOutputStream();
+        final DataOutputStream deltaOut = new DataOutputStream(deltaBytes);
+        final long literalBytes = DeltaTransport.encode(new ByteArrayInputStream(source), signatures, deltaOut);
+        deltaOut.flush();
+
+        final File target = folder.newFile();
+        final MessageDigest digest = FileHasher.createDigest();
+        final RandomAccessFile basisIn = new RandomAccessFile(basisFile, "r");
+        final FileOutputStream targetOut = new FileOutputStream(target);
+        final long written;
+        try {
+            written = DeltaTransport.apply(new DataInputStream(new ByteArrayInputStream(deltaBytes.toByteArray())),
+                    basisIn.getChannel(), basis.length, blockSize, targetOut.getChannel(), digest);
+        } finally {
+            basisIn.close();
+            targetOut.close();
+        }
+
+        assertEquals(source.length, written);
+        assertArrayEquals(source, read(target));
+
+        final MessageDigest expected = FileHasher.createDigest();
+        expected.update(source);
+        assertArrayEquals(expected.digest(), digest.digest());
+        return literalBytes;
+    }
+
+    private DeltaTransport.Signatures readSignatures(final byte[] basis) throws IOException {
+        final ByteArrayOutputStream signatureBytes = new ByteArrayOutputStream();
+        DeltaTransport.writeSignatures(write(basis), basis.length, DeltaTransport.chooseBlockSize(basis.length),
+                new DataOutputStream(signatureBytes));
+        return DeltaTransport.Signatures.read(new DataInputStream(new ByteArrayInputStream(signatureBytes.toByteArray())));
+    }
+
+    private byte[] randomBytes(final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] concat(final byte[]... parts) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private File write(final byte[] bytes) throws IOException {
+        final File file = folder.newFile();
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream in = new DataInputStream(new java.io.FileInputStream(file));
+        try {
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+
+    /**
+     * Records how much had been written each time it was flushed.
+     */
+    private static final class FlushRecorder extends ByteArrayOutputStream {
+        final List<Integer> flushedSizes = new ArrayList<>();
+
+        @Override public void flush() {
+            flushedSizes.add(size());
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+package me.denley.notary;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileListCodecTest {
+
+    @Test public void fullListingRoundTrip() throws IOException {
+        final FileListContainer container = listing("/sdcard/Music", "a.txt", "album", "album art.jpg", "\u00e9t\u00e9.mp3", "\u97f3\u697d.flac");
+        container.isDirectory[1] = true;
+        container.lengths[0] = 0;
+        container.lengths[2] = 123456789012L;
+        container.lengths[3] = Long.MAX_VALUE;
+        container.lastModified[4] = 1449000000000L;
+        container.requestId = -7;
+        container.epoch = Long.MIN_VALUE;
+        container.generation = 300;
+        container.cursor = "album";
+        container.nextCursor = "\u97f3\u697d.flac";
+
+        final FileListContainer decoded = roundTrip(container);
+        assertEquals(FileListContainer.SUCCESS, decoded.outcome);
+        assertEquals(FileListContainer.KIND_FULL, decoded.kind);
+        assertEquals("/sdcard/Music", decoded.directory);
+        assertEquals(-7L, decoded.requestId);
+        assertEquals(Long.MIN_VALUE, decoded.epoch);
+        assertEquals(300L, decoded.generation);
+        assertEquals("album", decoded.cursor);
+        assertEquals("\u97f3\u697d.flac", decoded.nextCursor);
+        assertArrayEquals(container.files, decoded.files);
+        assertArrayEquals(container.isDirectory, decoded.isDirectory);
+        assertArrayEquals(container.lengths, decoded.lengths);
+        assertArrayEquals(container.lastModified, decoded.lastModified);
+        assertNull(decoded.isRemoved);
+    }
+
+    @Test public void missingStringsRoundTrip() throws IOException {
+        final FileListContainer container = listing(null);
+        container.outcome = FileListContainer.ERROR_DIRECTORY_NOT_FOUND;
+
+        final FileListContainer decoded = roundTrip(container);
+        assertEquals(FileListContainer.ERROR_DIRECTORY_NOT_FOUND, decoded.outcome);
+        assertNull(decoded.directory);
+        assertNull(decoded.cursor);
+        assertNull(decoded.nextCursor);
+        assertEquals(0, decoded.getFileCount());
+    }
+
+    @Test public void deltaListingRoundTrip() throws IOException {
+        final FileListContainer container = listing("/sdcard/Music", "added.mp3", "changed.mp3", "removed.mp3", "removed dir");
+        container.kind = FileListContainer.KIND_DELTA;
+        container.epoch = 0x0123456789ABCDEFL;
+        container.generation = Long.MAX_VALUE;
+        container.isRemoved = new boolean[]{ false, false, true, true };
+        container.isDirectory[3] = true;
+
+        final FileListContainer decoded = roundTrip(container);
+        assertEquals(FileListContainer.KIND_DELTA, decoded.kind);
+        assertEquals(0x0123456789ABCDEFL, decoded.epoch);
+        assertEquals(Long.MAX_VALUE, decoded.generation);
+        assertArrayEquals(container.files, decoded.files);
+        assertArrayEquals(container.isDirectory, decoded.isDirectory);
+        assertArrayEquals(container.isRemoved, decoded.isRemoved);
+    }
+
+    @Test public void unchangedListingRoundTrip() throws IOException {
+        final FileListContainer container = listing("/sdcard/Music");
+        container.kind = FileListContainer.KIND_UNCHANGED;
+        container.epoch = 5;
+        container.generation = 12;
+
+        final FileListContainer decoded = roundTrip(container);
+        assertEquals(FileListContainer.KIND_UNCHANGED, decoded.kind);
+        assertEquals(5L, decoded.epoch);
+        assertEquals(12L, decoded.generation);
+        assertEquals(0, decoded.getFileCount());
+        assertNull(decoded.isRemoved);
+    }
+
+    @Test public void truncatedDeltaListingIsRejected() {
+        final FileListContainer container = listing("/", "a", "b");
+        container.kind = FileListContainer.KIND_DELTA;
+        container.isRemoved = new boolean[]{ true, false };
+        final byte[] encoded = FileListCodec.encode(container);
+
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                FileListCodec.decode(Arrays.copyOf(encoded, length));
+                fail("Decoded a delta listing truncated to " + length + " of " + encoded.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test public void modificationTimeIsSentToTheSecond() throws IOException {
+        final FileListContainer container = listing("/", "a");
+        container.lastModified[0] = 1449000000999L;
+        assertEquals(1449000000000L, roundTrip(container).lastModified[0]);
+    }
+
+    @Test public void manyFilesRoundTrip() throws IOException {
+        // More than one byte of directory flags, and counts and lengths over one varint byte
+        final String[] names = new String[1000];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("photo_%04d.jpg", i);
+        }
+        final FileListContainer container = listing("/sdcard/DCIM", names);
+        for (int i = 0; i < names.length; i++) {
+            container.isDirectory[i] = i % 3 == 0;
+            container.lengths[i] = (long) i << (i % 50);
+        }
+
+        final FileListContainer decoded = roundTrip(container);
+        assertArrayEquals(container.files, decoded.files);
+        assertArrayEquals(container.isDirectory, decoded.isDirectory);
+        assertArrayEquals(container.lengths, decoded.lengths);
+    }
+
+    @Test public void namesWithSharedPrefixesAreFrontCoded() {
+        final String[] names = new String[1000];
+        int nameBytes = 0;
+        for (int i = 0; i < names.length; i++) {
+            names[i] = String.format("IMG_20151201_%06d.jpg", i);
+            nameBytes += names[i].length();
+        }
+
+        final FileListContainer container = listing("/", names);
+        Arrays.fill(container.lengths, 0);
+        Arrays.fill(container.lastModified, 0);
+
+        // Only the differing digits and extension of each name are sent
+        assertTrue(FileListCodec.encode(container).length < nameBytes / 2);
+    }
+
+    @Test public void frontCodingHandlesNamesThatShareNothingOrEverything() throws IOException {
+        final FileListContainer container = listing("/", "abc", "abcdef", "abd", "b", "b", "");
+        assertArrayEquals(container.files, roundTrip(container).files);
+    }
+
+    @Test public void truncatedInputIsRejected() {
+        final FileListContainer container = listing("/sdcard", "one", "two", "three");
+        container.cursor = "one";
+        container.nextCursor = "three";
+        final byte[] encoded = FileListCodec.encode(container);
+
+        for (int length = 0; length < encoded.length; length++) {
+            try {
+                FileListCodec.decode(Arrays.copyOf(encoded, length));
+                fail("Decoded a listing truncated to " + length + " of " + encoded.length + " bytes");
+            } catch (IOException expected) {
+            }
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void unsupportedVersionIsRejected() throws IOException {
+        final byte[] encoded = FileListCodec.encode(listing("/"));
+        encoded[0] = 99;
+        FileListCodec.decode(encoded);
+    }
+
+    @Test(expected = IOException.class)
+    public void overlongVarintIsRejected() throws IOException {
+        final byte[] encoded = header();
+        // An outcome that never ends
+        final byte[] data = Arrays.copyOf(encoded, encoded.length + 6);
+        Arrays.fill(data, encoded.length, data.length, (byte) 0x80);
+        FileListCodec.decode(data);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeCountIsRejected() throws IOException {
+        FileListCodec.decode(withCount(new byte[]{ (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x0F }));
+    }
+
+    @Test(expected = IOException.class)
+    public void countLargerThanTheDataIsRejected() throws IOException {
+        FileListCodec.decode(withCount(new byte[]{ (byte) 0xE8, 0x07 }));
+    }
+
+    @Test(expected = IOException.class)
+    public void sharedPrefixLongerThanThePreviousNameIsRejected() throws IOException {
+        final FileListContainer container = listing("/", "a");
+        container.lastModified[0] = 0;
+        final byte[] encoded = FileListCodec.encode(container);
+        // The last file is encoded as: shared length, suffix length, 'a', size, modification time
+        encoded[encoded.length - 5] = 3;
+        FileListCodec.decode(encoded);
+    }
+
+    static FileListContainer listing(final String directory, final String... names) {
+        final FileListContainer container = new FileListContainer();
+        container.directory = directory;
+        container.setFileCount(names.length);
+        System.arraycopy(names, 0, container.files, 0, names.length);
+        for (int i = 0; i < names.length; i++) {
+            container.lengths[i] = i * 1000;
+            container.lastModified[i] = 1449000000000L + i * 1000;
+        }
+        return container;
+    }
+
+    static FileListContainer roundTrip(final FileListContainer container) throws IOException {
+        return FileListCodec.decode(FileListCodec.encode(container));
+    }
+
+    /**
+     * @return An encoded listing without a directory, up to the end of the request ID.
+     */
+    private static byte[] header() {
+        return Arrays.copyOf(FileListCodec.encode(listing(null)), 10);
+    }
+
+    /**
+     * @return An encoded listing without a directory, with the given bytes in place of the file count.
+     */
+    private static byte[] withCount(final byte[] count) {
+        // Version, header, request ID, outcome, kind, epoch, and a generation of zero
+        final byte[] prefix = Arrays.copyOf(FileListCodec.encode(listing(null)), 21);
+        final byte[] data = Arrays.copyOf(prefix, prefix.length + count.length + 16);
+        System.arraycopy(count, 0, data, prefix.length, count.length);
+        return data;
+    }
+
+}
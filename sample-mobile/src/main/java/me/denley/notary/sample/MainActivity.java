@@ -84,7 +84,7 @@ public class MainActivity extends ActionBarActivity implements SyncableFileFilte
     }
 
     @Override public boolean display(File file) {
-        return !file.isDirectory;
+        return !file.isDirectory();
     }
 
     @Override public boolean autoSync(File file) {
@@ -111,7 +111,7 @@ public class MainActivity extends ActionBarActivity implements SyncableFileFilte
             } else if(file instanceof PendingFile) {
                 final PendingFile pendingFile = (PendingFile)file;
 
-                switch(pendingFile.transaction.getStatus()) {
+                switch(pendingFile.getTransaction().getStatus()) {
                     case FileTransaction.STATUS_IN_PROGRESS:
                         icon.setImageResource(R.drawable.ic_action_sync);
                         break;
@@ -134,8 +134,11 @@ public class MainActivity extends ActionBarActivity implements SyncableFileFilte
                     case FileTransaction.STATUS_FAILED_NO_DELETE_PERMISSION:
                         text.append("\nCan't Delete");
                         break;
+                    case FileTransaction.STATUS_FAILED_INSUFFICIENT_SPACE:
+                        text.append("\nNot Enough Space");
+                        break;
                     case FileTransaction.STATUS_CANCELED:
-                        if(file.isDirectory) {
+                        if(file.isDirectory()) {
                             icon.setImageResource(R.drawable.ic_action_folder);
                         } else {
                             icon.setImageResource(R.drawable.ic_action_file);
@@ -143,7 +146,7 @@ public class MainActivity extends ActionBarActivity implements SyncableFileFilte
                         break;
                 }
             } else {
-                if(file.isDirectory) {
+                if(file.isDirectory()) {
                     icon.setImageResource(R.drawable.ic_action_folder);
                 } else {
                     icon.setImageResource(R.drawable.ic_action_file);
@@ -152,12 +155,12 @@ public class MainActivity extends ActionBarActivity implements SyncableFileFilte
 
             viewHolder.itemView.setOnClickListener(new View.OnClickListener() {
                 @Override public void onClick(View v) {
-                    if(file.isDirectory) {
+                    if(file.isDirectory()) {
                         // do nothing
                     } else if(file instanceof PendingFile) {
                         // TODO cancel transaction
                     } else if(file instanceof SyncedFile) {
-                        final String fileName = new java.io.File(file.path).getName();
+                        final String fileName = file.getName();
                         final String remotePath = FileTransaction.DEFAULT_DIRECTORY+"/"+fileName;
 
                         Notary.requestFileDelete(
@@ -166,7 +169,7 @@ public class MainActivity extends ActionBarActivity implements SyncableFileFilte
                                 FileTransaction.DEFAULT_DIRECTORY, localNode.getId());
                     } else {
                         Notary.requestFileTransfer(MainActivity.this,
-                                file.path, localNode.getId(),
+                                file.getPath(), localNode.getId(),
                                 FileTransaction.DEFAULT_DIRECTORY, remoteNodes.get(0).getId(),
                                 false);
                     }
@@ -57,7 +57,7 @@ public class MainActivity extends Activity implements WearableListView.ClickList
     }
 
     @Override public boolean display(File file) {
-        return !file.isDirectory;
+        return !file.isDirectory();
     }
 
     @Override public boolean autoSync(File file) {